@@ -1,35 +1,51 @@
 package cn.claresun.cpush;
 
+import cn.claresun.cpush.auth.AuthenticationTokenProvider;
 import cn.claresun.cpush.dns.InetAddressPool;
+import cn.claresun.cpush.dns.OnAddressesChanged;
 import cn.claresun.cpush.exception.NotConnectedException;
-import cn.claresun.cpush.exception.PoolNotReadyException;
+import cn.claresun.cpush.exception.ResponseTimeoutException;
 import cn.claresun.cpush.handler.APNSClientHandler;
 import cn.claresun.cpush.handler.APNSNotification;
+import cn.claresun.cpush.handler.APNSNotificationRequest;
 import cn.claresun.cpush.handler.APNSNotificationResponse;
+import cn.claresun.cpush.handler.PendingQueuePolicy;
+import cn.claresun.cpush.handler.WriteCoalescingHandler;
 import cn.claresun.cpush.util.Constant;
 import cn.claresun.cpush.util.SSLUtil;
+import cn.claresun.cpush.util.TransportUtil;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http2.Http2Settings;
 import io.netty.handler.ssl.ApplicationProtocolNames;
 import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
 import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.timeout.IdleStateHandler;
 import io.netty.handler.timeout.WriteTimeoutHandler;
 import io.netty.handler.traffic.ChannelTrafficShapingHandler;
+import io.netty.util.AttributeKey;
+import io.netty.util.NetUtil;
 import io.netty.util.concurrent.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
 import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.util.IdentityHashMap;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by claresun on 16-8-11.
@@ -40,67 +56,170 @@ public class APNSClient {
     private final Bootstrap bootstrap;
     private final boolean shouldShutDownEventLoopGroup;
 
-    private InetAddressPool inetAddressPool;
+    private final InetAddressPool inetAddressPool;
+    private final boolean shouldCloseInetAddressPool;
+
+    private final String authority;
+
+    private final AuthenticationTokenProvider authenticationTokenProvider;
+    private boolean tokenRefreshStarted;
 
     private long writeTimeoutMillis = Constant.DEFAULT_WRITE_TIMEOUT_MILLIS;
 
     private Long gracefulShutdownTimeoutMillis;
 
+    private long flushLatencyTargetMicros = Constant.DEFAULT_FLUSH_LATENCY_TARGET_MICROS;
+    private boolean adaptiveFlush;
+
+    private int maxPendingNotifications = Constant.DEFAULT_MAX_PENDING_NOTIFICATIONS;
+    private PendingQueuePolicy pendingQueuePolicy = PendingQueuePolicy.FAIL_FAST;
+
+    private Http2Settings http2Settings;
+    private volatile Semaphore pendingPermits;
+
+    private long responseTimeoutMillis;
+
     private volatile ChannelPromise connectionReadyPromise;
     private volatile ChannelPromise reconnectionPromise;
+    private ChannelPromise successorReadyPromise;
     private long reconnectDelaySeconds = Constant.INITIAL_RECONNECT_DELAY_SECONDS;
     private final int connectTimeOut = Constant.CONNECT_TIMEOUT_MILLIS;
 
-    private final Map<APNSNotification, Promise<Result>> responsePromises = new IdentityHashMap<>();
+    private final AtomicInteger inFlightNotifications = new AtomicInteger();
 
     private static final NotConnectedException NOT_CONNECTED_EXCEPTION = new NotConnectedException();
 
+    private static final AttributeKey<ChannelPromise> CONNECTION_READY_PROMISE_KEY =
+            AttributeKey.valueOf(APNSClient.class, "connectionReadyPromise");
+
+    private static final AttributeKey<InetAddress> GATEWAY_ADDRESS_KEY =
+            AttributeKey.valueOf(APNSClient.class, "gatewayAddress");
+
+    private final OnAddressesChanged onAddressesChanged = new OnAddressesChanged() {
+
+        @Override
+        public void changed(final Collection<InetAddress> added, final Collection<InetAddress> removed) {
+            final ChannelPromise connectionReadyPromise = APNSClient.this.connectionReadyPromise;
+
+            if (connectionReadyPromise == null) {
+                return;
+            }
+
+            // The address the channel was opened to, which is known even before it connects or after it closes
+            final InetAddress remoteAddress = connectionReadyPromise.channel().attr(GATEWAY_ADDRESS_KEY).get();
+
+            if (remoteAddress != null && removed.contains(remoteAddress)) {
+                // Spread the rotations of all clients on this address over a window instead of moving them at once
+                final long delayMillis = ThreadLocalRandom.current().nextLong(Constant.DNS_ROTATION_WINDOW_MILLIS);
+
+                log.info("Address {} was removed from DNS; moving off it in {} ms.", remoteAddress, delayMillis);
+
+                connectionReadyPromise.channel().eventLoop().schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        // Only move the connection that is on the removed address, not one opened since
+                        if (APNSClient.this.connectionReadyPromise == connectionReadyPromise && APNSClient.this.isConnected()) {
+                            APNSClient.this.rotate();
+                        }
+                    }
+                }, delayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    };
+
     public void setWriteLimitBytes(int writeLimitBytes) {
         this.writeLimitBytes = writeLimitBytes;
     }
 
+    /**
+     * Sets how many bytes of HTTP/2 frames are coalesced into one buffer before they are encrypted, which is also the
+     * most a TLS record written by this client carries. Applies to connections opened from now on.
+     */
+    public void setTlsWrapSize(final int tlsWrapSize) {
+        if (tlsWrapSize < 1 || tlsWrapSize > Constant.MAX_TLS_RECORD_PLAINTEXT_LENGTH) {
+            throw new IllegalArgumentException("TLS wrap size must be between 1 and " + Constant.MAX_TLS_RECORD_PLAINTEXT_LENGTH + ".");
+        }
+
+        this.tlsWrapSize = tlsWrapSize;
+    }
+
     private int writeLimitBytes;
 
-    //temporary
-    private int port;
+    private int tlsWrapSize = Constant.DEFAULT_TLS_WRAP_SIZE;
+
+    private final int port;
 
     private OnDataReceived onDataReceived;
 
+    private volatile ResponseDispatcher responseDispatcher;
+
     public void onDataReceived(final OnDataReceived onDataReceived) {
         this.onDataReceived = onDataReceived;
     }
 
-    public APNSClient(final File p12File, final String password) throws IOException, PoolNotReadyException {
-        this(p12File, password, Constant.DEVELOPMENT_APNS_HOST, Constant.DEFAULT_APNS_PORT);
+    /**
+     * Sets the dispatcher that hands every response, accepted or rejected, to a batch listener off the event loop,
+     * together with a failed response for each written notification that goes unanswered, or removes it if
+     * {@code null}. Unlike {@link #onDataReceived(OnDataReceived)}, a slow listener does not hold up
+     * the connection. Takes effect immediately.
+     */
+    public void setResponseDispatcher(final ResponseDispatcher responseDispatcher) {
+        this.responseDispatcher = responseDispatcher;
     }
 
-    public APNSClient(final File p12File, final String password, final String host, final int port) throws IOException, PoolNotReadyException {
+    public APNSClient(final File p12File, final String password) throws IOException {
+        this(p12File, password, Constant.DEVELOPMENT_APNS_HOST, Constant.DEFAULT_APNS_PORT);
+    }
 
-        this(SSLUtil.getSslContextWithP12File(p12File, password), new InetSocketAddress(host, port), null);
-        inetAddressPool = InetAddressPool.getInstance().init(host);
-        this.port = port;
+    public APNSClient(final File p12File, final String password, final String host, final int port) throws IOException {
+        this(SSLUtil.getSslContextWithP12File(p12File, password), host, port, null, null);
     }
 
     public APNSClient(final File p12File, final String password, final String host, final int port, final EventLoopGroup eventLoopGroup) throws IOException {
-        this(SSLUtil.getSslContextWithP12File(p12File, password), new InetSocketAddress(host, port), eventLoopGroup);
+        this(SSLUtil.getSslContextWithP12File(p12File, password), host, port, eventLoopGroup, null);
     }
 
     protected APNSClient(final SslContext sslContext, final InetSocketAddress address, final EventLoopGroup eventLoopGroup) {
+        this(sslContext, address.getHostString(), address.getPort(), eventLoopGroup, null);
+    }
+
+    /**
+     * Creates a client that authenticates with provider tokens instead of a certificate, which lets it send to every
+     * topic of the token's team.
+     */
+    public APNSClient(final AuthenticationTokenProvider authenticationTokenProvider, final String host, final int port, final EventLoopGroup eventLoopGroup) throws SSLException {
+        this(SSLUtil.getSslContextForTokenAuthentication(), host, port, eventLoopGroup, null, authenticationTokenProvider);
+    }
+
+    APNSClient(final SslContext sslContext, final String host, final int port, final EventLoopGroup eventLoopGroup, final InetAddressPool inetAddressPool) {
+        this(sslContext, host, port, eventLoopGroup, inetAddressPool, null);
+    }
+
+    /**
+     * Creates a client that connects through the given address pool, which is shared with other clients and not
+     * closed on disconnect. If no pool is given, the client resolves the host through a pool of its own. If a token
+     * provider is given, every notification carries its current token.
+     */
+    APNSClient(final SslContext sslContext, final String host, final int port, final EventLoopGroup eventLoopGroup, final InetAddressPool inetAddressPool, final AuthenticationTokenProvider authenticationTokenProvider) {
         this.bootstrap = new Bootstrap();
+        this.authenticationTokenProvider = authenticationTokenProvider;
+        this.authority = host;
+        this.port = port;
 
         if (eventLoopGroup != null) {
             this.bootstrap.group(eventLoopGroup);
             this.shouldShutDownEventLoopGroup = false;
         } else {
-            this.bootstrap.group(new NioEventLoopGroup(1));
+            this.bootstrap.group(TransportUtil.newEventLoopGroup(1));
             this.shouldShutDownEventLoopGroup = true;
         }
 
-        this.bootstrap.channel(NioSocketChannel.class);
+        this.bootstrap.channel(TransportUtil.getSocketChannelClass(this.bootstrap.config().group()));
         this.bootstrap.option(ChannelOption.TCP_NODELAY, true);
         this.bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, this.connectTimeOut);
         this.bootstrap.option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
-        this.bootstrap.remoteAddress(address);
+        this.bootstrap.remoteAddress(InetSocketAddress.createUnresolved(host, port));
         this.bootstrap.handler(new ChannelInitializer<SocketChannel>() {
 
             @Override
@@ -111,7 +230,32 @@ public class APNSClient {
                     pipeline.addLast(new WriteTimeoutHandler(APNSClient.this.writeTimeoutMillis, TimeUnit.MILLISECONDS));
                 }
 
-                pipeline.addLast(sslContext.newHandler(channel.alloc()));
+                final InetAddress gatewayAddress = channel.attr(GATEWAY_ADDRESS_KEY).get();
+                final SslHandler sslHandler = APNSClient.this.newSslHandler(sslContext, channel, gatewayAddress);
+
+                // A resumed session was created by an earlier handshake; session IDs cannot tell, since TLS 1.3 and
+                // session tickets do not reuse them and a server may echo the offered ID without resuming
+                final long handshakeStartMillis = System.currentTimeMillis();
+
+                if (gatewayAddress != null) {
+                    sslHandler.handshakeFuture().addListener(new GenericFutureListener<Future<Channel>>() {
+
+                        @Override
+                        public void operationComplete(final Future<Channel> future) throws Exception {
+                            if (future.isSuccess()) {
+                                final boolean resumed = sslHandler.engine().getSession().getCreationTime() < handshakeStartMillis;
+
+                                APNSClient.this.inetAddressPool.reportTlsHandshake(gatewayAddress, resumed);
+
+                                log.debug("TLS handshake with {} {} the previous session.", gatewayAddress,
+                                        resumed ? "resumed" : "did not resume");
+                            }
+                        }
+                    });
+                }
+
+                pipeline.addLast(sslHandler);
+                pipeline.addLast(new WriteCoalescingHandler(APNSClient.this.tlsWrapSize));
 
                 if (APNSClient.this.writeLimitBytes > 0) {
                     pipeline.addLast(new ChannelTrafficShapingHandler(APNSClient.this.writeLimitBytes, 0));
@@ -121,12 +265,41 @@ public class APNSClient {
                     @Override
                     protected void configurePipeline(final ChannelHandlerContext context, final String protocol) {
                         if (ApplicationProtocolNames.HTTP_2.equals(protocol)) {
-                            final APNSClientHandler apnsClientHandler = new APNSClientHandler.APNSClientHandlerBuilder()
+                            final long flushLatencyTargetMicros;
+                            final boolean adaptiveFlush;
+                            final int maxPendingNotifications;
+                            final PendingQueuePolicy pendingQueuePolicy;
+                            final Http2Settings http2Settings;
+                            final long responseTimeoutMillis;
+
+                            synchronized (APNSClient.this.bootstrap) {
+                                flushLatencyTargetMicros = APNSClient.this.flushLatencyTargetMicros;
+                                adaptiveFlush = APNSClient.this.adaptiveFlush;
+                                maxPendingNotifications = APNSClient.this.maxPendingNotifications;
+                                pendingQueuePolicy = APNSClient.this.pendingQueuePolicy;
+                                http2Settings = APNSClient.this.http2Settings;
+                                responseTimeoutMillis = APNSClient.this.responseTimeoutMillis;
+                            }
+
+                            final APNSClientHandler.APNSClientHandlerBuilder apnsClientHandlerBuilder = new APNSClientHandler.APNSClientHandlerBuilder();
+
+                            if (http2Settings != null) {
+                                apnsClientHandlerBuilder.initialSettings(http2Settings);
+                            }
+
+                            final APNSClientHandler apnsClientHandler = apnsClientHandlerBuilder
                                     .server(false)
-                                    .authority(((InetSocketAddress) context.channel().remoteAddress()).getHostName())
+                                    .apnsClient(APNSClient.this)
+                                    .inetAddressPool(APNSClient.this.inetAddressPool)
+                                    .authenticationTokenProvider(APNSClient.this.authenticationTokenProvider)
+                                    .authority(APNSClient.this.authority)
                                     .maxUnflushedNotifications(Constant.DEFAULT_MAX_UNFLUSHED_NOTIFICATIONS)
+                                    .flushLatencyTargetNanos(TimeUnit.MICROSECONDS.toNanos(flushLatencyTargetMicros))
+                                    .adaptiveFlush(adaptiveFlush)
+                                    .pendingQueue(maxPendingNotifications, pendingQueuePolicy)
+                                    .responseTimeoutNanos(TimeUnit.MILLISECONDS.toNanos(responseTimeoutMillis))
                                     .onDataReceived(APNSClient.this.onDataReceived)
-                                    .encoderEnforceMaxConcurrentStreams(true)
+                                    .encoderEnforceMaxConcurrentStreams(false)
                                     .build();
 
                             synchronized (APNSClient.this.bootstrap) {
@@ -135,16 +308,18 @@ public class APNSClient {
                                 }
                             }
 
-                            context.pipeline().addLast(new IdleStateHandler(0, Constant.DEFAULT_FLUSH_AFTER_IDLE_MILLIS, Constant.PING_IDLE_TIME_MILLIS, TimeUnit.MILLISECONDS));
+                            context.pipeline().addLast(new IdleStateHandler(0, 0, Constant.PING_IDLE_TIME_MILLIS, TimeUnit.MILLISECONDS));
                             context.pipeline().addLast(apnsClientHandler);
 
-                            context.channel().eventLoop().submit(new Runnable() {
+                            // The connection is only ready once the gateway's SETTINGS have arrived, which completes
+                            // the HTTP/2 preface and tells us its concurrent stream limit
+                            apnsClientHandler.initialSettingsFuture().addListener(new GenericFutureListener<ChannelFuture>() {
 
                                 @Override
-                                public void run() {
-                                    final ChannelPromise connectionReadyPromise = APNSClient.this.connectionReadyPromise;
+                                public void operationComplete(final ChannelFuture future) throws Exception {
+                                    final ChannelPromise connectionReadyPromise = context.channel().attr(CONNECTION_READY_PROMISE_KEY).get();
 
-                                    if (connectionReadyPromise != null) {
+                                    if (connectionReadyPromise != null && future.isSuccess()) {
                                         connectionReadyPromise.trySuccess();
                                     }
                                 }
@@ -158,7 +333,12 @@ public class APNSClient {
 
                     @Override
                     protected void handshakeFailure(final ChannelHandlerContext context, final Throwable cause) throws Exception {
-                        final ChannelPromise connectionReadyPromise = APNSClient.this.connectionReadyPromise;
+                        // A closed channel has no remote address, but the gateway it was opened to is still known
+                        if (gatewayAddress != null) {
+                            APNSClient.this.inetAddressPool.reportHandshakeFailure(gatewayAddress);
+                        }
+
+                        final ChannelPromise connectionReadyPromise = context.channel().attr(CONNECTION_READY_PROMISE_KEY).get();
 
                         if (connectionReadyPromise != null) {
                             connectionReadyPromise.tryFailure(cause);
@@ -169,6 +349,53 @@ public class APNSClient {
                 });
             }
         });
+
+        if (inetAddressPool != null) {
+            this.inetAddressPool = inetAddressPool;
+            this.shouldCloseInetAddressPool = false;
+        } else {
+            this.inetAddressPool = new InetAddressPool(host, this.bootstrap.config().group());
+            this.shouldCloseInetAddressPool = true;
+        }
+
+        this.inetAddressPool.addListener(this.onAddressesChanged);
+    }
+
+    /**
+     * Creates the TLS handler for a connection to the given gateway address. The JDK provider caches client sessions
+     * by peer host and port, so naming the gateway address rather than the APNs host as the peer lets a reconnect to
+     * the same gateway resume the session it negotiated last time; the host name is still sent through SNI. The
+     * OpenSSL engine takes the same peer, but netty-tcnative keeps no client-side session cache yet, so with that
+     * provider every handshake is a full one, which {@link InetAddressPool#getTlsResumptionRate()} makes visible. A
+     * handshake counts as resumed if its session was created before the handshake began, which holds for TLS 1.2 and
+     * 1.3 resumption alike.
+     */
+    private SslHandler newSslHandler(final SslContext sslContext, final Channel channel, final InetAddress gatewayAddress) {
+        if (gatewayAddress == null) {
+            return sslContext.newHandler(channel.alloc());
+        }
+
+        final SSLEngine sslEngine = sslContext.newEngine(channel.alloc(), gatewayAddress.getHostAddress(), this.port);
+
+        if (!NetUtil.isValidIpV4Address(this.authority) && !NetUtil.isValidIpV6Address(this.authority)) {
+            final SSLParameters sslParameters = sslEngine.getSSLParameters();
+
+            sslParameters.setServerNames(Collections.<SNIServerName>singletonList(new SNIHostName(this.authority)));
+            sslEngine.setSSLParameters(sslParameters);
+        }
+
+        return new SslHandler(sslEngine);
+    }
+
+    /**
+     * Sets a socket option for the connections opened from now on. Options of the native transport, such as
+     * {@code EpollChannelOption.TCP_QUICKACK}, only take effect if the client runs on an epoll event loop group (see
+     * {@link TransportUtil}); other transports ignore them.
+     */
+    public <T> void setOption(final ChannelOption<T> option, final T value) {
+        synchronized (this.bootstrap) {
+            this.bootstrap.option(option, value);
+        }
     }
 
     public void setGracefulShutdownTimeout(final long timeoutMillis) {
@@ -186,66 +413,177 @@ public class APNSClient {
         }
     }
 
-    public Future<Void> connect() {
-        final Future<Void> connectionReadyFuture;
+    /**
+     * Sets how long a notification may wait to be flushed together with the writes queued behind it, and whether the
+     * number of notifications per flush is tuned toward that target. Applies to connections opened from now on.
+     */
+    public void setFlushLatencyTarget(final long latencyTargetMicros, final boolean adaptive) {
+        synchronized (this.bootstrap) {
+            this.flushLatencyTargetMicros = latencyTargetMicros;
+            this.adaptiveFlush = adaptive;
+        }
+    }
 
-        if (this.bootstrap.config().group().isShuttingDown() || this.bootstrap.config().group().isShutdown()) {
-            connectionReadyFuture = new FailedFuture<>(GlobalEventExecutor.INSTANCE,
-                    new IllegalStateException("The event loop group is shut down."));
-        } else {
-            synchronized (this.bootstrap) {
+    /**
+     * Bounds the number of notifications that wait for a free stream once the gateway's concurrent stream limit is
+     * reached, and sets what happens when that bound is hit. With {@link PendingQueuePolicy#BLOCK}, {@code send} and
+     * {@code sendAsynchronous} wait while {@code capacity} notifications are queued or being written; batches sent
+     * with {@code sendAll} are throttled by their chunk size instead. Applies to connections opened from now on.
+     */
+    public void setPendingQueue(final int capacity, final PendingQueuePolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Pending queue capacity must be positive.");
+        }
 
-                if (this.connectionReadyPromise == null) {
+        synchronized (this.bootstrap) {
+            this.maxPendingNotifications = capacity;
+            this.pendingQueuePolicy = Objects.requireNonNull(policy, "Pending queue policy must not be null.");
+            this.pendingPermits = policy == PendingQueuePolicy.BLOCK ? new Semaphore(capacity) : null;
+        }
+    }
 
-                    final ChannelFuture connectFuture = this.bootstrap.connect(inetAddressPool.next(), this.port);
-                    this.connectionReadyPromise = connectFuture.channel().newPromise();
+    /**
+     * Sets how long the gateway may take to answer a notification once it has been written. A notification that is
+     * not answered in time has its stream reset, and its future fails with a {@link ResponseTimeoutException}. Zero,
+     * the default, waits for as long as the connection is up. Applies to connections opened from now on.
+     */
+    public void setResponseTimeout(final long timeoutMillis) {
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("Response timeout must not be negative.");
+        }
 
-                    connectFuture.channel().closeFuture().addListener(new GenericFutureListener<ChannelFuture>() {
+        synchronized (this.bootstrap) {
+            this.responseTimeoutMillis = timeoutMillis;
+        }
+    }
 
-                        @Override
-                        public void operationComplete(final ChannelFuture future) throws Exception {
-                            synchronized (APNSClient.this.bootstrap) {
-                                if (APNSClient.this.connectionReadyPromise != null) {
-                                    APNSClient.this.connectionReadyPromise.tryFailure(
-                                            new IllegalStateException("Channel closed before HTTP/2 preface completed."));
+    /**
+     * Returns the number of notifications the current connection is holding back until the gateway lets it open
+     * more streams.
+     */
+    public int getPendingNotifications() {
+        final APNSClientHandler handler = this.getCurrentHandler();
+        return handler != null ? handler.getPendingQueueDepth() : 0;
+    }
 
-                                    APNSClient.this.connectionReadyPromise = null;
-                                }
+    /**
+     * Waits for room in the pending queue if the client blocks when it is full. Returns the permits to release once
+     * the write has completed, or {@code null} if the client does not block or the caller is the event loop, which
+     * must never wait.
+     */
+    private Semaphore acquirePendingPermit(final Channel channel) throws InterruptedException {
+        final Semaphore pendingPermits = this.pendingPermits;
 
-                                if (APNSClient.this.reconnectionPromise != null) {
-                                    log.debug("Disconnected. Next automatic reconnection attempt in {} seconds.", APNSClient.this.reconnectDelaySeconds);
+        if (pendingPermits == null || channel.eventLoop().inEventLoop()) {
+            return null;
+        }
 
-                                    future.channel().eventLoop().schedule(new Runnable() {
+        pendingPermits.acquire();
+        return pendingPermits;
+    }
 
-                                        @Override
-                                        public void run() {
-                                            log.debug("Attempting to reconnect.");
-                                            try {
-                                                APNSClient.this.connect();
-                                            } catch (Exception e) {
-                                                log.error(e.toString());
-                                            }
-                                        }
-                                    }, APNSClient.this.reconnectDelaySeconds, TimeUnit.SECONDS);
+    /**
+     * Returns the number of TLS records the current connection has written per notification, or 0 if it has not
+     * written any notification yet.
+     */
+    public double getTlsRecordsPerNotification() {
+        final ChannelPromise connectionReadyPromise = this.connectionReadyPromise;
 
-                                }
-                            }
+        if (connectionReadyPromise == null) {
+            return 0;
+        }
 
-                            future.channel().eventLoop().submit(new Runnable() {
+        final ChannelPipeline pipeline = connectionReadyPromise.channel().pipeline();
+        final APNSClientHandler handler = pipeline.get(APNSClientHandler.class);
+        final WriteCoalescingHandler writeCoalescingHandler = pipeline.get(WriteCoalescingHandler.class);
 
-                                @Override
-                                public void run() {
-                                    for (final Promise<Result> responsePromise : APNSClient.this.responsePromises.values()) {
-                                        if (!responsePromise.isDone()) {
-                                            responsePromise.tryFailure(new NotConnectedException("Client disconnected unexpectedly."));
-                                        }
-                                    }
+        if (handler == null || writeCoalescingHandler == null || handler.getNotificationsWritten() == 0) {
+            return 0;
+        }
 
-                                    APNSClient.this.responsePromises.clear();
-                                }
-                            });
-                        }
-                    });
+        return (double) writeCoalescingHandler.getRecordsWritten() / handler.getNotificationsWritten();
+    }
+
+    /**
+     * Returns the number of notifications the current connection writes before it flushes, or 0 if not connected.
+     */
+    public int getFlushBatchSize() {
+        final APNSClientHandler handler = this.getCurrentHandler();
+        return handler != null ? handler.getFlushBatchSize() : 0;
+    }
+
+    /**
+     * Sets the HTTP/2 settings sent to the gateway by connections opened from now on, e.g.
+     * {@code new Http2Settings().headerTableSize(...).initialWindowSize(...).maxFrameSize(...)}.
+     */
+    public void setHttp2Settings(final Http2Settings http2Settings) {
+        synchronized (this.bootstrap) {
+            this.http2Settings = http2Settings;
+        }
+    }
+
+    /**
+     * Returns the settings the gateway sent to the current connection, or {@code null} if not connected.
+     */
+    public Http2Settings getRemoteSettings() {
+        final APNSClientHandler handler = this.getCurrentHandler();
+        return handler != null ? handler.getRemoteSettings() : null;
+    }
+
+    /**
+     * Returns the size of the current connection's HPACK-encoded header blocks relative to the plain headers.
+     */
+    public double getHeaderCompressionRatio() {
+        final APNSClientHandler handler = this.getCurrentHandler();
+        return handler != null ? handler.getHeaderCompressionRatio() : 0;
+    }
+
+    public double getHeaderBytesPerNotification() {
+        final APNSClientHandler handler = this.getCurrentHandler();
+        return handler != null ? handler.getHeaderBytesPerNotification() : 0;
+    }
+
+    private APNSClientHandler getCurrentHandler() {
+        final ChannelPromise connectionReadyPromise = this.connectionReadyPromise;
+        return connectionReadyPromise != null ? connectionReadyPromise.channel().pipeline().get(APNSClientHandler.class) : null;
+    }
+
+    public Future<Void> connect() {
+        final Future<Void> connectionReadyFuture;
+        final Future<InetAddressPool> poolReadyFuture = this.inetAddressPool.init();
+
+        if (this.bootstrap.config().group().isShuttingDown() || this.bootstrap.config().group().isShutdown()) {
+            connectionReadyFuture = new FailedFuture<>(GlobalEventExecutor.INSTANCE,
+                    new IllegalStateException("The event loop group is shut down."));
+        } else if (!poolReadyFuture.isDone()) {
+            // Connect once the host has been resolved instead of blocking the caller on DNS
+            final Promise<Void> connectPromise = new DefaultPromise<>(GlobalEventExecutor.INSTANCE);
+
+            poolReadyFuture.addListener(new GenericFutureListener<Future<InetAddressPool>>() {
+
+                @Override
+                public void operationComplete(final Future<InetAddressPool> future) throws Exception {
+                    if (future.isSuccess()) {
+                        APNSClient.this.connect().addListener(new PromiseNotifier<Void, Future<Void>>(connectPromise));
+                    } else {
+                        connectPromise.tryFailure(future.cause());
+                    }
+                }
+            });
+
+            connectionReadyFuture = connectPromise;
+        } else if (!poolReadyFuture.isSuccess()) {
+            connectionReadyFuture = new FailedFuture<>(GlobalEventExecutor.INSTANCE, poolReadyFuture.cause());
+        } else {
+            synchronized (this.bootstrap) {
+
+                if (this.authenticationTokenProvider != null && !this.tokenRefreshStarted) {
+                    this.authenticationTokenProvider.start();
+                    this.tokenRefreshStarted = true;
+                }
+
+                if (this.connectionReadyPromise == null) {
+                    this.connectionReadyPromise = this.openConnection();
 
                     this.connectionReadyPromise.addListener(new GenericFutureListener<ChannelFuture>() {
 
@@ -276,6 +614,246 @@ public class APNSClient {
         return connectionReadyFuture;
     }
 
+    /**
+     * Opens a channel to the next address of the pool. The returned promise succeeds once the channel has negotiated
+     * HTTP/2. When the channel closes, the client only reconnects if it was the current connection; channels that were
+     * replaced by {@link #rotate()} simply finish draining.
+     */
+    private ChannelPromise openConnection() {
+        final InetAddress address = this.inetAddressPool.next();
+        final ChannelFuture connectFuture = this.bootstrap.clone()
+                .attr(GATEWAY_ADDRESS_KEY, address)
+                .connect(address, this.port);
+        final ChannelPromise readyPromise = connectFuture.channel().newPromise();
+
+        connectFuture.channel().attr(CONNECTION_READY_PROMISE_KEY).set(readyPromise);
+
+        connectFuture.addListener(new GenericFutureListener<ChannelFuture>() {
+
+            @Override
+            public void operationComplete(final ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) {
+                    APNSClient.this.inetAddressPool.reportConnectFailure(address);
+                }
+            }
+        });
+
+        readyPromise.addListener(new GenericFutureListener<ChannelFuture>() {
+
+            @Override
+            public void operationComplete(final ChannelFuture future) throws Exception {
+                if (future.isSuccess()) {
+                    APNSClient.this.inetAddressPool.reportSuccess(address);
+                }
+            }
+        });
+
+        connectFuture.channel().closeFuture().addListener(new GenericFutureListener<ChannelFuture>() {
+
+            @Override
+            public void operationComplete(final ChannelFuture future) throws Exception {
+                readyPromise.tryFailure(new IllegalStateException("Channel closed before HTTP/2 preface completed."));
+
+                synchronized (APNSClient.this.bootstrap) {
+                    if (APNSClient.this.connectionReadyPromise != readyPromise) {
+                        log.debug("Replaced connection to {} closed.", address);
+                        return;
+                    }
+
+                    APNSClient.this.connectionReadyPromise = null;
+
+                    if (APNSClient.this.reconnectionPromise != null) {
+                        log.debug("Disconnected. Next automatic reconnection attempt in {} seconds.", APNSClient.this.reconnectDelaySeconds);
+
+                        future.channel().eventLoop().schedule(new Runnable() {
+
+                            @Override
+                            public void run() {
+                                log.debug("Attempting to reconnect.");
+                                try {
+                                    APNSClient.this.connect();
+                                } catch (Exception e) {
+                                    log.error(e.toString());
+                                }
+                            }
+                        }, APNSClient.this.reconnectDelaySeconds, TimeUnit.SECONDS);
+
+                    }
+                }
+            }
+        });
+
+        return readyPromise;
+    }
+
+    /**
+     * Replaces the current connection without interrupting delivery: a successor connection is opened to the next
+     * address of the pool, new notifications are routed to it as soon as it is ready, and only then is the old
+     * connection closed gracefully, which lets its in-flight streams finish first. Notifications still waiting for a
+     * stream on the old connection are moved to the new one.
+     */
+    public Future<Void> rotate() {
+        synchronized (this.bootstrap) {
+            if (this.connectionReadyPromise == null || !this.connectionReadyPromise.isSuccess()) {
+                return this.connect();
+            }
+
+            if (this.successorReadyPromise != null) {
+                return this.successorReadyPromise;
+            }
+
+            final ChannelPromise successorReadyPromise = this.openConnection();
+            this.successorReadyPromise = successorReadyPromise;
+
+            successorReadyPromise.addListener(new GenericFutureListener<ChannelFuture>() {
+
+                @Override
+                public void operationComplete(final ChannelFuture future) throws Exception {
+                    final ChannelPromise predecessorReadyPromise;
+
+                    synchronized (APNSClient.this.bootstrap) {
+                        APNSClient.this.successorReadyPromise = null;
+
+                        if (!future.isSuccess()) {
+                            log.warn("Failed to open a replacement connection; keeping the current one.", future.cause());
+                            return;
+                        }
+
+                        if (APNSClient.this.reconnectionPromise == null) {
+                            // The client was disconnected while the successor was connecting
+                            future.channel().close();
+                            return;
+                        }
+
+                        predecessorReadyPromise = APNSClient.this.connectionReadyPromise;
+                        APNSClient.this.connectionReadyPromise = successorReadyPromise;
+                    }
+
+                    log.info("Moved connection to {}.", future.channel().remoteAddress());
+
+                    if (predecessorReadyPromise != null) {
+                        final Channel predecessor = predecessorReadyPromise.channel();
+
+                        // Notifications still waiting for a stream on the old connection are resent on the new one,
+                        // as after a GOAWAY, instead of failing when it closes
+                        predecessor.eventLoop().execute(new Runnable() {
+
+                            @Override
+                            public void run() {
+                                final APNSClientHandler handler = predecessor.pipeline().get(APNSClientHandler.class);
+
+                                if (handler != null) {
+                                    handler.retire(predecessor);
+                                }
+
+                                predecessor.close();
+                            }
+                        });
+                    }
+                }
+            });
+
+            return successorReadyPromise;
+        }
+    }
+
+    /**
+     * Moves notifications off a connection on which the gateway sent GOAWAY. The connection is replaced as in
+     * {@link #rotate()}, so it keeps draining the streams the gateway will still answer, and the given notifications,
+     * which the gateway did not process, are written again on the replacement once it is ready.
+     */
+    public void handleGoAway(final Channel channel, final Collection<APNSNotificationRequest> unprocessedRequests) {
+        log.info("Gateway {} is going away; moving {} unprocessed notifications to a new connection.",
+                channel.remoteAddress(), unprocessedRequests.size());
+
+        final Future<Void> replacementReadyFuture = this.replace(channel);
+
+        for (final APNSNotificationRequest request : unprocessedRequests) {
+            this.resend(replacementReadyFuture, request, null);
+        }
+    }
+
+    /**
+     * Writes a notification that was sent to a connection after its GOAWAY on the connection replacing it instead.
+     * The given write promise completes with the outcome of that write.
+     */
+    public void migrate(final Channel channel, final APNSNotificationRequest request, final ChannelPromise writePromise) {
+        this.resend(this.replace(channel), request, writePromise);
+    }
+
+    /**
+     * Replaces the given connection through {@link #rotate()} if it is still the current one. The returned future
+     * succeeds once notifications can be written to the connection that replaced it.
+     */
+    public Future<Void> replace(final Channel channel) {
+        synchronized (this.bootstrap) {
+            if (this.connectionReadyPromise != null) {
+                return this.connectionReadyPromise.channel() == channel ? this.rotate() : this.connectionReadyPromise;
+            }
+
+            if (this.reconnectionPromise != null) {
+                return this.connect();
+            }
+        }
+
+        return new FailedFuture<>(GlobalEventExecutor.INSTANCE, new NotConnectedException("Client was disconnected."));
+    }
+
+    private void resend(final Future<Void> connectionReadyFuture, final APNSNotificationRequest request, final ChannelPromise writePromise) {
+        connectionReadyFuture.addListener(new GenericFutureListener<Future<Void>>() {
+
+            @Override
+            public void operationComplete(final Future<Void> future) throws Exception {
+                final ChannelPromise connectionReadyPromise = APNSClient.this.connectionReadyPromise;
+                final ChannelFuture writeFuture;
+
+                if (future.isSuccess() && connectionReadyPromise != null && connectionReadyPromise.isSuccess()) {
+                    writeFuture = connectionReadyPromise.channel().writeAndFlush(request);
+                } else {
+                    writeFuture = null;
+                }
+
+                if (writePromise != null) {
+                    if (writeFuture != null) {
+                        writeFuture.addListener(new PromiseNotifier<Void, ChannelFuture>(writePromise));
+                    } else {
+                        writePromise.tryFailure(future.cause() != null ? future.cause() : NOT_CONNECTED_EXCEPTION);
+                    }
+                } else if (writeFuture != null) {
+                    writeFuture.addListener(new GenericFutureListener<ChannelFuture>() {
+
+                        @Override
+                        public void operationComplete(final ChannelFuture future) throws Exception {
+                            if (!future.isSuccess()) {
+                                log.debug("Failed to resend push notification: {}", request, future.cause());
+                                APNSClient.this.handleUnansweredNotifications(Collections.singletonList(request), future.cause());
+                            }
+                        }
+                    });
+                } else {
+                    log.debug("Failed to resend push notification because no connection is ready: {}", request);
+                    APNSClient.this.handleUnansweredNotifications(Collections.singletonList(request),
+                            future.cause() != null ? future.cause() : NOT_CONNECTED_EXCEPTION);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the gateway address of the current connection, or {@code null} if the client is not connected.
+     */
+    public InetAddress getRemoteAddress() {
+        final ChannelPromise connectionReadyPromise = this.connectionReadyPromise;
+
+        if (connectionReadyPromise == null) {
+            return null;
+        }
+
+        final InetSocketAddress remoteAddress = (InetSocketAddress) connectionReadyPromise.channel().remoteAddress();
+
+        return remoteAddress != null ? remoteAddress.getAddress() : null;
+    }
+
     public Future<Void> getReconnectionFuture() {
         final Future<Void> reconnectionFuture;
 
@@ -298,9 +876,24 @@ public class APNSClient {
         log.info("Disconnecting.");
         final Future<Void> disconnectFuture;
 
+        this.inetAddressPool.removeListener(this.onAddressesChanged);
+
+        if (this.shouldCloseInetAddressPool) {
+            this.inetAddressPool.close();
+        }
+
         synchronized (this.bootstrap) {
             this.reconnectionPromise = null;
 
+            if (this.tokenRefreshStarted) {
+                this.authenticationTokenProvider.stop();
+                this.tokenRefreshStarted = false;
+            }
+
+            if (this.successorReadyPromise != null) {
+                this.successorReadyPromise.channel().close();
+            }
+
             final Future<Void> channelCloseFuture;
 
             if (this.connectionReadyPromise != null) {
@@ -335,6 +928,10 @@ public class APNSClient {
         return disconnectFuture;
     }
 
+    /**
+     * Sends a notification and reports the gateway's answer to the given callback: {@code onSuccess} if the
+     * notification was accepted, {@code onFailure} if it was rejected, could not be written, or was not answered.
+     */
     public void sendAsynchronous(final APNSNotification notification, final Callback callback) throws NotConnectedException {
 
         final ChannelPromise connectionReadyPromise = this.connectionReadyPromise;
@@ -348,69 +945,261 @@ public class APNSClient {
             throw new NotConnectedException("Client is not ready.");
         }
 
-        connectionReadyPromise.channel().write(notification).addListener(new GenericFutureListener<ChannelFuture>() {
+        this.send(connectionReadyPromise, notification).addListener(new GenericFutureListener<Future<Result>>() {
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public void operationComplete(final Future<Result> future) throws Exception {
+                if (future.isSuccess()) {
+                    final APNSNotificationResponse response = (APNSNotificationResponse) future.getNow();
+
+                    if (response.isAccepted()) {
+                        callback.onSuccess(response);
+                    } else {
+                        callback.onFailure(response);
+                    }
+                } else {
+                    callback.onFailure(new APNSNotificationResponse(notification, false, future.cause().toString(), null));
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends a notification. The returned future succeeds with the gateway's {@link APNSNotificationResponse} once
+     * the notification's stream is answered, whether the notification was accepted or rejected, and fails if the
+     * notification could not be written or was not answered.
+     */
+    public Future<Result> send(final APNSNotification notification) {
+
+        final ChannelPromise connectionReadyPromise = this.connectionReadyPromise;
+
+        if (connectionReadyPromise == null ||
+                !connectionReadyPromise.isSuccess() ||
+                !connectionReadyPromise.channel().isActive()) {
+            log.debug("Failed to send push notification because client is not connected: {}", notification);
+            return new FailedFuture<>(GlobalEventExecutor.INSTANCE, NOT_CONNECTED_EXCEPTION);
+        }
+
+        return this.send(connectionReadyPromise, notification);
+    }
+
+    private Future<Result> send(final ChannelPromise connectionReadyPromise, final APNSNotification notification) {
+        final Semaphore pendingPermits;
+
+        try {
+            pendingPermits = this.acquirePendingPermit(connectionReadyPromise.channel());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new FailedFuture<>(GlobalEventExecutor.INSTANCE, e);
+        }
+
+        // The promise travels with the notification to its stream, so nothing is registered here and the same
+        // notification may be sent again before it is answered
+        final DefaultPromise<Result> responsePromise =
+                new DefaultPromise<>(connectionReadyPromise.channel().eventLoop());
+
+        this.inFlightNotifications.incrementAndGet();
+
+        connectionReadyPromise.channel().write(new APNSNotificationRequest(notification, responsePromise)).addListener(new GenericFutureListener<ChannelFuture>() {
+
             @Override
             public void operationComplete(final ChannelFuture future) throws Exception {
+                if (pendingPermits != null) {
+                    pendingPermits.release();
+                }
+
+                // A written notification's promise is completed by its response
                 if (!future.isSuccess()) {
+                    APNSClient.this.inFlightNotifications.decrementAndGet();
+
                     log.debug("Failed to write push notification: {}", notification, future.cause());
-                    callback.onFailure(new APNSNotificationResponse(
-                            notification, false, future.cause() != null ? future.cause().toString() : future.cause().toString(), null
-                    ));
+
+                    responsePromise.tryFailure(future.cause());
                 }
             }
         });
 
+        return responsePromise;
     }
 
-    public Future<Result> send(final APNSNotification notification) {
-
-        final Future<Result> responseFuture;
+    public Future<BatchResult> sendAll(final Collection<APNSNotification> notifications) {
+        return this.sendAll(notifications.iterator());
+    }
 
+    /**
+     * Sends a batch of notifications over the current connection. The whole batch is handed to the event loop in one
+     * task and written in chunks of {@link Constant#BATCH_WRITE_CHUNK_SIZE}; every chunk is flushed once, and the next
+     * one is only written after the last write of the previous chunk has completed, so that a large batch neither
+     * holds the event loop nor piles up in the outbound buffer. The iterator is consumed on the event loop and must
+     * not be used by the caller until the returned future is done, which is once the gateway has answered every
+     * notification or it has failed to be sent or answered.
+     */
+    public Future<BatchResult> sendAll(final Iterator<APNSNotification> notifications) {
         final ChannelPromise connectionReadyPromise = this.connectionReadyPromise;
 
         if (connectionReadyPromise == null ||
                 !connectionReadyPromise.isSuccess() ||
                 !connectionReadyPromise.channel().isActive()) {
-            log.debug("Failed to send push notification because client is not connected: {}", notification);
-            responseFuture = new FailedFuture<>(
-                    GlobalEventExecutor.INSTANCE, NOT_CONNECTED_EXCEPTION);
-        } else {
-            final DefaultPromise<Result> responsePromise =
-                    new DefaultPromise<>(connectionReadyPromise.channel().eventLoop());
+            log.debug("Failed to send a batch of push notifications because client is not connected.");
+            return new FailedFuture<>(GlobalEventExecutor.INSTANCE, NOT_CONNECTED_EXCEPTION);
+        }
+
+        final BatchWriter batchWriter = new BatchWriter(connectionReadyPromise.channel(), notifications);
+        connectionReadyPromise.channel().eventLoop().execute(batchWriter);
+
+        return batchWriter.batchPromise;
+    }
+
+    private class BatchWriter implements Runnable {
+        private final Channel channel;
+        private final Iterator<APNSNotification> notifications;
+        private final Promise<BatchResult> batchPromise;
+
+        private final List<APNSNotificationResponse> rejections = new ArrayList<>();
+        private final List<APNSNotification> failedNotifications = new ArrayList<>();
+        private final List<Throwable> failureCauses = new ArrayList<>();
+
+        private int size;
+        private int pendingResponses;
+        private boolean exhausted;
 
-            connectionReadyPromise.channel().eventLoop().submit(new Runnable() {
+        private BatchWriter(final Channel channel, final Iterator<APNSNotification> notifications) {
+            this.channel = channel;
+            this.notifications = notifications;
+            this.batchPromise = new DefaultPromise<>(channel.eventLoop());
+        }
+
+        @Override
+        public void run() {
+            ChannelFuture lastWriteFuture = null;
+
+            try {
+                for (int i = 0; i < Constant.BATCH_WRITE_CHUNK_SIZE && this.notifications.hasNext(); i++) {
+                    lastWriteFuture = this.write(this.notifications.next());
+                }
+            } catch (final RuntimeException e) {
+                log.warn("Failed to read the next notification of a batch.", e);
+                this.channel.flush();
+                this.batchPromise.tryFailure(e);
+                return;
+            }
+
+            this.channel.flush();
+
+            if (lastWriteFuture == null || !this.notifications.hasNext()) {
+                this.exhausted = true;
+                this.completeIfDone();
+            } else {
+                lastWriteFuture.addListener(new GenericFutureListener<ChannelFuture>() {
+
+                    @Override
+                    public void operationComplete(final ChannelFuture future) throws Exception {
+                        BatchWriter.this.channel.eventLoop().execute(BatchWriter.this);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Writes one notification and returns the write future, which only paces the chunks; the notification's
+         * outcome is taken from its response promise.
+         */
+        private ChannelFuture write(final APNSNotification notification) {
+            this.size++;
+            this.pendingResponses++;
+
+            final DefaultPromise<Result> responsePromise = new DefaultPromise<>(this.channel.eventLoop());
+
+            responsePromise.addListener(new GenericFutureListener<Future<Result>>() {
 
                 @Override
-                public void run() {
-                    if (APNSClient.this.responsePromises.containsKey(notification)) {
-                        responsePromise.setFailure(new IllegalStateException(
-                                "The given notification has already been sent and not yet resolved."));
+                public void operationComplete(final Future<Result> future) throws Exception {
+                    if (future.isSuccess()) {
+                        final APNSNotificationResponse response = (APNSNotificationResponse) future.getNow();
+
+                        if (!response.isAccepted()) {
+                            BatchWriter.this.rejections.add(response);
+                        }
                     } else {
-                        APNSClient.this.responsePromises.put(notification, responsePromise);
+                        BatchWriter.this.failedNotifications.add(notification);
+                        BatchWriter.this.failureCauses.add(future.cause());
                     }
+
+                    BatchWriter.this.pendingResponses--;
+                    BatchWriter.this.completeIfDone();
                 }
             });
 
-            connectionReadyPromise.channel().write(notification).addListener(new GenericFutureListener<ChannelFuture>() {
+            APNSClient.this.inFlightNotifications.incrementAndGet();
+
+            return this.channel.write(new APNSNotificationRequest(notification, responsePromise)).addListener(new GenericFutureListener<ChannelFuture>() {
 
                 @Override
                 public void operationComplete(final ChannelFuture future) throws Exception {
-                    if (future.isSuccess()) {
-                        responsePromise.trySuccess(null);
-                    } else {
+                    // A written notification's promise is completed by its response
+                    if (!future.isSuccess()) {
+                        APNSClient.this.inFlightNotifications.decrementAndGet();
+
                         log.debug("Failed to write push notification: {}", notification, future.cause());
 
                         responsePromise.tryFailure(future.cause());
                     }
-
-                    APNSClient.this.responsePromises.remove(notification);
                 }
             });
+        }
+
+        private void completeIfDone() {
+            if (this.exhausted && this.pendingResponses == 0) {
+                this.batchPromise.trySuccess(new BatchResult(this.size, this.rejections, this.failedNotifications, this.failureCauses));
+            }
+        }
+    }
+
+    /**
+     * Completes the future of an answered notification with the gateway's response. Called on the event loop of the
+     * connection that received the response.
+     */
+    public void handlePushNotificationResponse(final APNSNotificationRequest request, final APNSNotificationResponse response) {
+        this.inFlightNotifications.decrementAndGet();
+
+        final ResponseDispatcher responseDispatcher = this.responseDispatcher;
 
-            responseFuture = responsePromise;
+        if (responseDispatcher != null) {
+            responseDispatcher.dispatch(response);
         }
 
-        return responseFuture;
+        if (request.getResponsePromise() != null) {
+            request.getResponsePromise().trySuccess(response);
+        }
+    }
+
+    /**
+     * Fails the futures of written notifications that the gateway will not answer with the given cause. Called on the
+     * event loop of the connection they were written to.
+     */
+    public void handleUnansweredNotifications(final Collection<APNSNotificationRequest> requests, final Throwable cause) {
+        this.inFlightNotifications.addAndGet(-requests.size());
+
+        final ResponseDispatcher responseDispatcher = this.responseDispatcher;
+
+        for (final APNSNotificationRequest request : requests) {
+            if (responseDispatcher != null) {
+                responseDispatcher.dispatch(new APNSNotificationResponse(request.getNotification(), cause));
+            }
+
+            if (request.getResponsePromise() != null) {
+                request.getResponsePromise().tryFailure(cause);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of notifications that have been handed to this client and have neither been answered by the
+     * APNs gateway nor failed to be written.
+     */
+    public int getInFlightNotifications() {
+        return this.inFlightNotifications.get();
     }
 
     public boolean isConnected() {
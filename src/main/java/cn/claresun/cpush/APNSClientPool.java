@@ -0,0 +1,434 @@
+package cn.claresun.cpush;
+
+import cn.claresun.cpush.auth.AuthenticationTokenProvider;
+import cn.claresun.cpush.dns.InetAddressPool;
+import cn.claresun.cpush.exception.NotConnectedException;
+import cn.claresun.cpush.handler.APNSNotification;
+import cn.claresun.cpush.handler.PendingQueuePolicy;
+import cn.claresun.cpush.util.Constant;
+import cn.claresun.cpush.util.SSLUtil;
+import cn.claresun.cpush.util.TransportUtil;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.ssl.SslContext;
+import io.netty.util.concurrent.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLException;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A set of {@link APNSClient} connections to the same APNs host, spread over the gateway addresses of the host's
+ * {@link InetAddressPool}. Every notification is routed to the connected client with the fewest in-flight
+ * notifications.
+ */
+public class APNSClientPool {
+    private static final Logger log = LoggerFactory.getLogger(APNSClientPool.class);
+
+    private final EventLoopGroup eventLoopGroup;
+    private final boolean shouldShutDownEventLoopGroup;
+
+    private final InetAddressPool inetAddressPool;
+    private final boolean shouldCloseInetAddressPool;
+
+    private final List<APNSClient> clients;
+    private final AtomicInteger nextClientOffset = new AtomicInteger();
+
+    private static final NotConnectedException NOT_CONNECTED_EXCEPTION = new NotConnectedException();
+
+    public APNSClientPool(final File p12File, final String password) throws IOException {
+        this(p12File, password, Constant.DEVELOPMENT_APNS_HOST, Constant.DEFAULT_APNS_PORT, Constant.DEFAULT_CONNECTION_POOL_SIZE);
+    }
+
+    public APNSClientPool(final File p12File, final String password, final String host, final int port, final int poolSize) throws IOException {
+        this(p12File, password, host, port, poolSize, null);
+    }
+
+    public APNSClientPool(final File p12File, final String password, final String host, final int port, final int poolSize, final EventLoopGroup eventLoopGroup) throws IOException {
+        this(SSLUtil.getSslContextWithP12File(p12File, password), host, port, poolSize, eventLoopGroup);
+    }
+
+    /**
+     * Creates a pool whose clients authenticate with provider tokens, so that the pool can send to every topic of the
+     * token's team.
+     */
+    public APNSClientPool(final AuthenticationTokenProvider authenticationTokenProvider, final String host, final int port, final int poolSize, final EventLoopGroup eventLoopGroup) throws SSLException {
+        this(SSLUtil.getSslContextForTokenAuthentication(), host, port, poolSize, eventLoopGroup, null, authenticationTokenProvider);
+    }
+
+    protected APNSClientPool(final SslContext sslContext, final String host, final int port, final int poolSize, final EventLoopGroup eventLoopGroup) {
+        this(sslContext, host, port, poolSize, eventLoopGroup, null, null);
+    }
+
+    /**
+     * Creates a pool whose clients connect through the given address pool, which is shared with other pools and not
+     * closed on disconnect. If no address pool is given, the pool resolves the host through one of its own.
+     */
+    APNSClientPool(final SslContext sslContext, final String host, final int port, final int poolSize, final EventLoopGroup eventLoopGroup, final InetAddressPool inetAddressPool, final AuthenticationTokenProvider authenticationTokenProvider) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Pool size must be positive.");
+        }
+
+        if (eventLoopGroup != null) {
+            this.eventLoopGroup = eventLoopGroup;
+            this.shouldShutDownEventLoopGroup = false;
+        } else {
+            // Spread the connections over one event loop thread each, up to the number of cores
+            this.eventLoopGroup = TransportUtil.newEventLoopGroup(Math.min(poolSize, Runtime.getRuntime().availableProcessors()));
+            this.shouldShutDownEventLoopGroup = true;
+        }
+
+        if (inetAddressPool != null) {
+            this.inetAddressPool = inetAddressPool;
+            this.shouldCloseInetAddressPool = false;
+        } else {
+            this.inetAddressPool = new InetAddressPool(host, this.eventLoopGroup);
+            this.shouldCloseInetAddressPool = true;
+        }
+
+        this.clients = new ArrayList<>(poolSize);
+
+        for (int i = 0; i < poolSize; i++) {
+            this.clients.add(new APNSClient(sslContext, host, port, this.eventLoopGroup, this.inetAddressPool, authenticationTokenProvider));
+        }
+    }
+
+    public void onDataReceived(final OnDataReceived onDataReceived) {
+        for (final APNSClient client : this.clients) {
+            client.onDataReceived(onDataReceived);
+        }
+    }
+
+    public <T> void setOption(final ChannelOption<T> option, final T value) {
+        for (final APNSClient client : this.clients) {
+            client.setOption(option, value);
+        }
+    }
+
+    public void setGracefulShutdownTimeout(final long timeoutMillis) {
+        for (final APNSClient client : this.clients) {
+            client.setGracefulShutdownTimeout(timeoutMillis);
+        }
+    }
+
+    public void setFlushLatencyTarget(final long latencyTargetMicros, final boolean adaptive) {
+        for (final APNSClient client : this.clients) {
+            client.setFlushLatencyTarget(latencyTargetMicros, adaptive);
+        }
+    }
+
+    public void setPendingQueue(final int capacity, final PendingQueuePolicy policy) {
+        for (final APNSClient client : this.clients) {
+            client.setPendingQueue(capacity, policy);
+        }
+    }
+
+    public void setResponseTimeout(final long timeoutMillis) {
+        for (final APNSClient client : this.clients) {
+            client.setResponseTimeout(timeoutMillis);
+        }
+    }
+
+    /**
+     * Sets one dispatcher for the responses of every client in the pool.
+     */
+    public void setResponseDispatcher(final ResponseDispatcher responseDispatcher) {
+        for (final APNSClient client : this.clients) {
+            client.setResponseDispatcher(responseDispatcher);
+        }
+    }
+
+    public void setTlsWrapSize(final int tlsWrapSize) {
+        for (final APNSClient client : this.clients) {
+            client.setTlsWrapSize(tlsWrapSize);
+        }
+    }
+
+    public void setHttp2Settings(final Http2Settings http2Settings) {
+        for (final APNSClient client : this.clients) {
+            client.setHttp2Settings(http2Settings);
+        }
+    }
+
+    /**
+     * Connects every client in the pool. The returned future succeeds once all connections are ready and fails if
+     * any of them could not be established.
+     */
+    public Future<Void> connect() {
+        return this.warmUp(this.clients.size());
+    }
+
+    /**
+     * Opens all pooled connections in parallel, each one up to the end of the HTTP/2 preface, so that the first
+     * notifications do not pay for TCP, TLS, ALPN and the SETTINGS exchange. The returned future succeeds as soon as
+     * {@code quorum} connections are ready and fails once so many connections have failed that the quorum can no
+     * longer be reached. Connections that are still opening when the quorum is met keep opening in the background.
+     */
+    public Future<Void> warmUp(final int quorum) {
+        if (quorum < 1 || quorum > this.clients.size()) {
+            throw new IllegalArgumentException("Quorum must be between 1 and the pool size.");
+        }
+
+        final List<Future<Void>> connectFutures = new ArrayList<>(this.clients.size());
+
+        for (final APNSClient client : this.clients) {
+            connectFutures.add(client.connect());
+        }
+
+        return aggregate(connectFutures, quorum);
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public Future<Void> disconnect() throws InterruptedException {
+        log.info("Disconnecting {} pooled connections.", this.clients.size());
+
+        final List<Future<Void>> closeFutures = new ArrayList<>(this.clients.size());
+
+        for (final APNSClient client : this.clients) {
+            closeFutures.add(client.disconnect());
+        }
+
+        final Future<Void> closePromise = aggregate(closeFutures, closeFutures.size());
+
+        if (this.shouldCloseInetAddressPool) {
+            this.inetAddressPool.close();
+        }
+
+        if (!this.shouldShutDownEventLoopGroup) {
+            return closePromise;
+        }
+
+        final DefaultPromise<Void> disconnectPromise = new DefaultPromise<>(GlobalEventExecutor.INSTANCE);
+
+        closePromise.addListener(new GenericFutureListener<Future<Void>>() {
+
+            @Override
+            public void operationComplete(final Future<Void> future) throws Exception {
+                APNSClientPool.this.eventLoopGroup.shutdownGracefully();
+            }
+        });
+
+        this.eventLoopGroup.terminationFuture().addListener(new GenericFutureListener() {
+
+            @Override
+            public void operationComplete(final Future future) throws Exception {
+                disconnectPromise.trySuccess(null);
+            }
+        });
+
+        return disconnectPromise;
+    }
+
+    public void sendAsynchronous(final APNSNotification notification, final Callback callback) throws NotConnectedException {
+        final APNSClient client = this.nextClient();
+
+        if (client == null) {
+            throw new NotConnectedException("No pooled client is ready.");
+        }
+
+        client.sendAsynchronous(notification, callback);
+    }
+
+    public Future<Result> send(final APNSNotification notification) {
+        final APNSClient client = this.nextClient();
+
+        if (client == null) {
+            log.debug("Failed to send push notification because no pooled client is connected: {}", notification);
+            return new FailedFuture<>(GlobalEventExecutor.INSTANCE, NOT_CONNECTED_EXCEPTION);
+        }
+
+        return client.send(notification);
+    }
+
+    /**
+     * Spreads a batch of notifications evenly over the connected clients, each of which writes its share with
+     * {@link APNSClient#sendAll(Iterator)}. The returned future succeeds with the combined result of all shares once
+     * the gateway has answered every notification or it has failed to be sent or answered.
+     */
+    public Future<BatchResult> sendAll(final Collection<APNSNotification> notifications) {
+        final List<APNSClient> connectedClients = new ArrayList<>(this.clients.size());
+
+        for (final APNSClient client : this.clients) {
+            if (client.isConnected()) {
+                connectedClients.add(client);
+            }
+        }
+
+        if (connectedClients.isEmpty()) {
+            log.debug("Failed to send a batch of push notifications because no pooled client is connected.");
+            return new FailedFuture<>(GlobalEventExecutor.INSTANCE, NOT_CONNECTED_EXCEPTION);
+        }
+
+        // The shares are written later on the clients' event loops, so they are cut from a copy the caller cannot change
+        final List<APNSNotification> batch = new ArrayList<>(notifications);
+
+        final int shares = Math.max(1, Math.min(connectedClients.size(), batch.size()));
+        final List<BatchResult> results = new ArrayList<>(shares);
+        final Promise<BatchResult> batchPromise = new DefaultPromise<>(GlobalEventExecutor.INSTANCE);
+        final AtomicInteger sharesRemaining = new AtomicInteger(shares);
+
+        for (int i = 0; i < shares; i++) {
+            final List<APNSNotification> share = batch.subList(batch.size() * i / shares, batch.size() * (i + 1) / shares);
+
+            connectedClients.get(i).sendAll(share).addListener(new GenericFutureListener<Future<BatchResult>>() {
+
+                @Override
+                public void operationComplete(final Future<BatchResult> future) throws Exception {
+                    final BatchResult result;
+
+                    if (future.isSuccess()) {
+                        result = future.getNow();
+                    } else {
+                        result = new BatchResult(share.size(), share, Collections.nCopies(share.size(), future.cause()));
+                    }
+
+                    synchronized (results) {
+                        results.add(result);
+                    }
+
+                    if (sharesRemaining.decrementAndGet() == 0) {
+                        batchPromise.trySuccess(BatchResult.merge(results));
+                    }
+                }
+            });
+        }
+
+        return batchPromise;
+    }
+
+    /**
+     * Returns the number of in-flight notifications of each pooled connection, in pool order.
+     */
+    public int[] getInFlightNotificationsPerConnection() {
+        final int[] inFlightNotifications = new int[this.clients.size()];
+
+        for (int i = 0; i < inFlightNotifications.length; i++) {
+            inFlightNotifications[i] = this.clients.get(i).getInFlightNotifications();
+        }
+
+        return inFlightNotifications;
+    }
+
+    /**
+     * Returns the number of notifications per flush of each pooled connection, in pool order.
+     */
+    public int[] getFlushBatchSizePerConnection() {
+        final int[] flushBatchSizes = new int[this.clients.size()];
+
+        for (int i = 0; i < flushBatchSizes.length; i++) {
+            flushBatchSizes[i] = this.clients.get(i).getFlushBatchSize();
+        }
+
+        return flushBatchSizes;
+    }
+
+    /**
+     * Returns the number of TLS records written per notification by each pooled connection, in pool order.
+     */
+    public double[] getTlsRecordsPerNotificationPerConnection() {
+        final double[] tlsRecordsPerNotification = new double[this.clients.size()];
+
+        for (int i = 0; i < tlsRecordsPerNotification.length; i++) {
+            tlsRecordsPerNotification[i] = this.clients.get(i).getTlsRecordsPerNotification();
+        }
+
+        return tlsRecordsPerNotification;
+    }
+
+    public int getInFlightNotifications() {
+        int inFlightNotifications = 0;
+
+        for (final APNSClient client : this.clients) {
+            inFlightNotifications += client.getInFlightNotifications();
+        }
+
+        return inFlightNotifications;
+    }
+
+    /**
+     * Returns the number of notifications all pooled connections are holding back until the gateway lets them open
+     * more streams.
+     */
+    public int getPendingNotifications() {
+        int pendingNotifications = 0;
+
+        for (final APNSClient client : this.clients) {
+            pendingNotifications += client.getPendingNotifications();
+        }
+
+        return pendingNotifications;
+    }
+
+    /**
+     * Returns the share of TLS handshakes of this pool's connections that resumed an earlier session with the same
+     * gateway address.
+     */
+    public double getTlsResumptionRate() {
+        return this.inetAddressPool.getTlsResumptionRate();
+    }
+
+    public boolean isConnected() {
+        return this.nextClient() != null;
+    }
+
+    static Future<Void> aggregate(final List<Future<Void>> futures, final int quorum) {
+        final Promise<Void> aggregatePromise = new DefaultPromise<>(GlobalEventExecutor.INSTANCE);
+        final AtomicInteger successesNeeded = new AtomicInteger(quorum);
+        final AtomicInteger failuresTolerated = new AtomicInteger(futures.size() - quorum);
+
+        for (final Future<Void> future : futures) {
+            future.addListener(new GenericFutureListener<Future<Void>>() {
+
+                @Override
+                public void operationComplete(final Future<Void> future) throws Exception {
+                    if (future.isSuccess()) {
+                        if (successesNeeded.decrementAndGet() == 0) {
+                            aggregatePromise.trySuccess(null);
+                        }
+                    } else if (failuresTolerated.decrementAndGet() < 0) {
+                        aggregatePromise.tryFailure(future.cause());
+                    }
+                }
+            });
+        }
+
+        return aggregatePromise;
+    }
+
+    private APNSClient nextClient() {
+        return leastInFlight(this.clients, this.nextClientOffset.getAndIncrement() & Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the connected client with the fewest in-flight notifications, or {@code null} if none is connected.
+     * The scan starts at the given offset so that idle connections share the load instead of the first one winning
+     * every tie.
+     */
+    static APNSClient leastInFlight(final List<APNSClient> clients, final int offset) {
+        final int size = clients.size();
+        final int start = offset % size;
+
+        APNSClient selectedClient = null;
+        int fewestInFlightNotifications = Integer.MAX_VALUE;
+
+        for (int i = 0; i < size; i++) {
+            final APNSClient client = clients.get((start + i) % size);
+
+            if (client.isConnected()) {
+                final int inFlightNotifications = client.getInFlightNotifications();
+
+                if (inFlightNotifications < fewestInFlightNotifications) {
+                    selectedClient = client;
+                    fewestInFlightNotifications = inFlightNotifications;
+                }
+            }
+        }
+
+        return selectedClient;
+    }
+}
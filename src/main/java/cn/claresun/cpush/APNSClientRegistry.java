@@ -0,0 +1,264 @@
+package cn.claresun.cpush;
+
+import cn.claresun.cpush.dns.InetAddressPool;
+import cn.claresun.cpush.exception.NotConnectedException;
+import cn.claresun.cpush.handler.APNSNotification;
+import cn.claresun.cpush.util.Constant;
+import cn.claresun.cpush.util.SSLUtil;
+import cn.claresun.cpush.util.TransportUtil;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.ssl.SslContext;
+import io.netty.util.concurrent.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.cert.X509Certificate;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sends notifications for many apps, each with its own certificate, to the same APNs host. Every certificate gets an
+ * {@link APNSClientPool}, and each notification is routed to the pool registered for its topic. All pools share one
+ * event loop group and one {@link InetAddressPool}, and a certificate's key material is parsed once, no matter how
+ * many connections use it.
+ */
+public class APNSClientRegistry {
+    private static final Logger log = LoggerFactory.getLogger(APNSClientRegistry.class);
+
+    private final String host;
+    private final int port;
+    private final int poolSize;
+
+    private final EventLoopGroup eventLoopGroup;
+    private final boolean shouldShutDownEventLoopGroup;
+
+    private final InetAddressPool inetAddressPool;
+
+    private final Map<String, APNSClientPool> poolsByCertificatePath = new HashMap<>();
+    private final Map<String, APNSClientPool> poolsByTopic = new ConcurrentHashMap<>();
+
+    private OnDataReceived onDataReceived;
+    private ResponseDispatcher responseDispatcher;
+
+    public APNSClientRegistry() {
+        this(Constant.PRODUCTION_APNS_HOST, Constant.DEFAULT_APNS_PORT, Constant.DEFAULT_CONNECTION_POOL_SIZE, null);
+    }
+
+    /**
+     * Creates a registry whose tenants each get {@code poolSize} connections to the given host. If no event loop group
+     * is given, the registry creates one with a thread per core and shuts it down on disconnect.
+     */
+    public APNSClientRegistry(final String host, final int port, final int poolSize, final EventLoopGroup eventLoopGroup) {
+        this.host = host;
+        this.port = port;
+        this.poolSize = poolSize;
+
+        if (eventLoopGroup != null) {
+            this.eventLoopGroup = eventLoopGroup;
+            this.shouldShutDownEventLoopGroup = false;
+        } else {
+            this.eventLoopGroup = TransportUtil.newEventLoopGroup();
+            this.shouldShutDownEventLoopGroup = true;
+        }
+
+        this.inetAddressPool = new InetAddressPool(host, this.eventLoopGroup);
+    }
+
+    /**
+     * Sets the listener for responses of every tenant, including tenants registered later.
+     */
+    public synchronized void onDataReceived(final OnDataReceived onDataReceived) {
+        this.onDataReceived = onDataReceived;
+
+        for (final APNSClientPool pool : this.poolsByCertificatePath.values()) {
+            pool.onDataReceived(onDataReceived);
+        }
+    }
+
+    /**
+     * Sets one dispatcher for the responses of every tenant, including tenants registered later.
+     */
+    public synchronized void setResponseDispatcher(final ResponseDispatcher responseDispatcher) {
+        this.responseDispatcher = responseDispatcher;
+
+        for (final APNSClientPool pool : this.poolsByCertificatePath.values()) {
+            pool.setResponseDispatcher(responseDispatcher);
+        }
+    }
+
+    /**
+     * Registers the certificate in the given PKCS#12 file for the topics listed in the certificate itself and connects
+     * its pool.
+     */
+    public Future<Void> register(final File p12File, final String password) throws IOException {
+        return this.register(p12File, password, null);
+    }
+
+    /**
+     * Registers the certificate in the given PKCS#12 file for the given topics, or for the topics listed in the
+     * certificate if {@code topics} is null, and connects its pool. Registering a certificate again only adds topics
+     * to its existing pool. The returned future succeeds once the pool is connected.
+     *
+     * @throws IllegalArgumentException if no topics are given and none can be read from the certificate
+     * @throws IllegalStateException if one of the topics is already registered for a different certificate
+     */
+    public synchronized Future<Void> register(final File p12File, final String password, final Collection<String> topics) throws IOException {
+        final String certificatePath = p12File.getCanonicalPath();
+        APNSClientPool pool = this.poolsByCertificatePath.get(certificatePath);
+
+        final Set<String> poolTopics = new LinkedHashSet<>();
+
+        if (topics != null) {
+            poolTopics.addAll(topics);
+        }
+
+        final SslContext sslContext;
+
+        if (pool == null) {
+            final KeyStore.PrivateKeyEntry privateKeyEntry;
+
+            try (final InputStream p12InputStream = new FileInputStream(p12File)) {
+                privateKeyEntry = SSLUtil.getFirstPrivateKeyEntryFromP12InputStream(p12InputStream, password);
+            } catch (final KeyStoreException e) {
+                throw new SSLException(e);
+            }
+
+            if (!(privateKeyEntry.getCertificate() instanceof X509Certificate)) {
+                throw new SSLException("Found a certificate in " + p12File + ", but it was not an X.509 certificate.");
+            }
+
+            final X509Certificate certificate = (X509Certificate) privateKeyEntry.getCertificate();
+
+            if (topics == null) {
+                poolTopics.addAll(SSLUtil.getApnsTopicsFromCertificate(certificate));
+            }
+
+            sslContext = SSLUtil.getSslContextWithCertificateAndPrivateKey(certificate, privateKeyEntry.getPrivateKey(), password);
+        } else {
+            sslContext = null;
+        }
+
+        if (poolTopics.isEmpty()) {
+            throw new IllegalArgumentException("No topics given or found in certificate " + p12File + ".");
+        }
+
+        for (final String topic : poolTopics) {
+            final APNSClientPool registeredPool = this.poolsByTopic.get(topic);
+
+            if (registeredPool != null && registeredPool != pool) {
+                throw new IllegalStateException("Topic " + topic + " is already registered for another certificate.");
+            }
+        }
+
+        if (pool == null) {
+            pool = new APNSClientPool(sslContext, this.host, this.port, this.poolSize, this.eventLoopGroup, this.inetAddressPool, null);
+
+            if (this.onDataReceived != null) {
+                pool.onDataReceived(this.onDataReceived);
+            }
+
+            if (this.responseDispatcher != null) {
+                pool.setResponseDispatcher(this.responseDispatcher);
+            }
+
+            this.poolsByCertificatePath.put(certificatePath, pool);
+        }
+
+        for (final String topic : poolTopics) {
+            this.poolsByTopic.put(topic, pool);
+        }
+
+        log.info("Registered {} for topics {}.", p12File, poolTopics);
+
+        return pool.connect();
+    }
+
+    /**
+     * Returns the pool registered for the given topic, or {@code null} if there is none. A notification without a
+     * topic is routed to the only registered pool if there is exactly one.
+     */
+    public APNSClientPool getPool(final String topic) {
+        if (topic == null) {
+            synchronized (this) {
+                return this.poolsByCertificatePath.size() == 1 ? this.poolsByCertificatePath.values().iterator().next() : null;
+            }
+        }
+
+        return this.poolsByTopic.get(topic);
+    }
+
+    public Set<String> getTopics() {
+        return Collections.unmodifiableSet(this.poolsByTopic.keySet());
+    }
+
+    public void sendAsynchronous(final APNSNotification notification, final Callback callback) throws NotConnectedException {
+        final APNSClientPool pool = this.getPool(notification.getTopic());
+
+        if (pool == null) {
+            throw new NotConnectedException("No certificate is registered for topic " + notification.getTopic() + ".");
+        }
+
+        pool.sendAsynchronous(notification, callback);
+    }
+
+    public Future<Result> send(final APNSNotification notification) {
+        final APNSClientPool pool = this.getPool(notification.getTopic());
+
+        if (pool == null) {
+            log.debug("Failed to send push notification because no certificate is registered for its topic: {}", notification);
+            return new FailedFuture<>(GlobalEventExecutor.INSTANCE,
+                    new NotConnectedException("No certificate is registered for topic " + notification.getTopic() + "."));
+        }
+
+        return pool.send(notification);
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public synchronized Future<Void> disconnect() throws InterruptedException {
+        log.info("Disconnecting {} tenants.", this.poolsByCertificatePath.size());
+
+        final List<Future<Void>> closeFutures = new ArrayList<>(this.poolsByCertificatePath.size());
+
+        for (final APNSClientPool pool : this.poolsByCertificatePath.values()) {
+            closeFutures.add(pool.disconnect());
+        }
+
+        this.poolsByCertificatePath.clear();
+        this.poolsByTopic.clear();
+
+        final Future<Void> closePromise = APNSClientPool.aggregate(closeFutures, closeFutures.size());
+
+        this.inetAddressPool.close();
+
+        if (!this.shouldShutDownEventLoopGroup) {
+            return closePromise;
+        }
+
+        final DefaultPromise<Void> disconnectPromise = new DefaultPromise<>(GlobalEventExecutor.INSTANCE);
+
+        closePromise.addListener(new GenericFutureListener<Future<Void>>() {
+
+            @Override
+            public void operationComplete(final Future<Void> future) throws Exception {
+                APNSClientRegistry.this.eventLoopGroup.shutdownGracefully();
+            }
+        });
+
+        this.eventLoopGroup.terminationFuture().addListener(new GenericFutureListener() {
+
+            @Override
+            public void operationComplete(final Future future) throws Exception {
+                disconnectPromise.trySuccess(null);
+            }
+        });
+
+        return disconnectPromise;
+    }
+}
@@ -0,0 +1,83 @@
+package cn.claresun.cpush;
+
+import cn.claresun.cpush.handler.APNSNotification;
+import cn.claresun.cpush.handler.APNSNotificationResponse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of a batch of notifications sent with {@code sendAll}: how many notifications were sent, the gateway's
+ * responses to those it rejected, and which ones could not be written or were not answered and why. The failed
+ * notifications and their causes are listed in the same order.
+ */
+public class BatchResult extends Result {
+    private final int size;
+    private final List<APNSNotificationResponse> rejections;
+    private final List<APNSNotification> failedNotifications;
+    private final List<Throwable> failureCauses;
+
+    BatchResult(final int size, final List<APNSNotification> failedNotifications, final List<Throwable> failureCauses) {
+        this(size, Collections.<APNSNotificationResponse>emptyList(), failedNotifications, failureCauses);
+    }
+
+    BatchResult(final int size, final List<APNSNotificationResponse> rejections, final List<APNSNotification> failedNotifications, final List<Throwable> failureCauses) {
+        this.size = size;
+        this.rejections = Collections.unmodifiableList(rejections);
+        this.failedNotifications = Collections.unmodifiableList(failedNotifications);
+        this.failureCauses = Collections.unmodifiableList(failureCauses);
+    }
+
+    static BatchResult merge(final List<BatchResult> results) {
+        int size = 0;
+        final List<APNSNotificationResponse> rejections = new ArrayList<>();
+        final List<APNSNotification> failedNotifications = new ArrayList<>();
+        final List<Throwable> failureCauses = new ArrayList<>();
+
+        for (final BatchResult result : results) {
+            size += result.size;
+            rejections.addAll(result.rejections);
+            failedNotifications.addAll(result.failedNotifications);
+            failureCauses.addAll(result.failureCauses);
+        }
+
+        return new BatchResult(size, rejections, failedNotifications, failureCauses);
+    }
+
+    public int getSize() {
+        return this.size;
+    }
+
+    /**
+     * Returns the number of notifications the gateway accepted.
+     */
+    public int getSucceeded() {
+        return this.size - this.rejections.size() - this.failedNotifications.size();
+    }
+
+    /**
+     * Returns the gateway's responses to the notifications it rejected.
+     */
+    public List<APNSNotificationResponse> getRejections() {
+        return this.rejections;
+    }
+
+    public List<APNSNotification> getFailedNotifications() {
+        return this.failedNotifications;
+    }
+
+    public List<Throwable> getFailureCauses() {
+        return this.failureCauses;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("BatchResult{");
+        sb.append("size=").append(size);
+        sb.append(", rejected=").append(rejections.size());
+        sb.append(", failed=").append(failedNotifications.size());
+        sb.append('}');
+        return sb.toString();
+    }
+}
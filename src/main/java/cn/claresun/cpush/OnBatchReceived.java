@@ -0,0 +1,10 @@
+package cn.claresun.cpush;
+
+import java.util.List;
+
+/**
+ * Receives responses in batches, off the event loop; see {@link ResponseDispatcher}.
+ */
+public interface OnBatchReceived<T> {
+    void received(List<T> batch);
+}
@@ -0,0 +1,11 @@
+package cn.claresun.cpush;
+
+import cn.claresun.cpush.handler.APNSNotificationResponse;
+
+/**
+ * Told about each response a {@link ResponseDispatcher} drops because its queue is full. Called on the event loop
+ * that offered the response, so it must not block.
+ */
+public interface OnResponseDropped {
+    void dropped(APNSNotificationResponse response);
+}
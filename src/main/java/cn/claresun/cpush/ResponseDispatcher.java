@@ -0,0 +1,160 @@
+package cn.claresun.cpush;
+
+import cn.claresun.cpush.handler.APNSNotificationResponse;
+import cn.claresun.cpush.util.Constant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands responses from the event loops to a listener running on a separate executor, in batches.
+ *
+ * <p>An event loop only offers each response to a bounded lock-free queue and, if no drain is under way, submits one
+ * to the executor, so its cost per response does not depend on the listener. A single drain at a time takes up to
+ * {@code maxBatchSize} responses per call of the listener, in the order they were offered, until the queue is empty.
+ * Besides the gateway's answers, the listener receives a failed response for every written notification that will
+ * not be answered, e.g. because it timed out or its connection closed; see {@link APNSNotificationResponse#getCause()}.
+ * </p>
+ *
+ * <p>If the listener falls so far behind that the queue is full, further responses are dropped rather than holding up
+ * the event loop. Drops are counted and passed to an optional {@link OnResponseDropped}; the futures of the
+ * notifications are completed either way.</p>
+ */
+public class ResponseDispatcher {
+    private static final Logger log = LoggerFactory.getLogger(ResponseDispatcher.class);
+
+    private final Executor executor;
+    private final int maxBatchSize;
+    private final OnBatchReceived<APNSNotificationResponse> listener;
+    private final OnResponseDropped dropListener;
+
+    // The JDK queue is unbounded, so the capacity is enforced by counting the queued responses
+    private final int capacity;
+    private final Queue<APNSNotificationResponse> responses = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedResponses = new AtomicInteger();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicLong droppedResponses = new AtomicLong();
+
+    private final Runnable drainTask = new Runnable() {
+
+        @Override
+        public void run() {
+            ResponseDispatcher.this.drain();
+        }
+    };
+
+    public ResponseDispatcher(final Executor executor, final OnBatchReceived<APNSNotificationResponse> listener) {
+        this(executor, Constant.DEFAULT_RESPONSE_QUEUE_CAPACITY, Constant.DEFAULT_RESPONSE_BATCH_SIZE, listener);
+    }
+
+    public ResponseDispatcher(final Executor executor, final int capacity, final int maxBatchSize, final OnBatchReceived<APNSNotificationResponse> listener) {
+        this(executor, capacity, maxBatchSize, listener, null);
+    }
+
+    public ResponseDispatcher(final Executor executor, final int capacity, final int maxBatchSize, final OnBatchReceived<APNSNotificationResponse> listener, final OnResponseDropped dropListener) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Response queue capacity must be positive.");
+        }
+
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Response batch size must be positive.");
+        }
+
+        this.executor = Objects.requireNonNull(executor, "Executor must not be null.");
+        this.listener = Objects.requireNonNull(listener, "Listener must not be null.");
+        this.dropListener = dropListener;
+        this.capacity = capacity;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Queues a response for the listener. Returns {@code false} if the queue was full and the response was dropped.
+     */
+    public boolean dispatch(final APNSNotificationResponse response) {
+        if (this.queuedResponses.incrementAndGet() > this.capacity) {
+            this.queuedResponses.decrementAndGet();
+            this.drop(response);
+
+            return false;
+        }
+
+        this.responses.offer(response);
+        this.scheduleDrain();
+        return true;
+    }
+
+    /**
+     * Returns the number of responses dropped because the queue was full.
+     */
+    public long getDroppedResponses() {
+        return this.droppedResponses.get();
+    }
+
+    private void drop(final APNSNotificationResponse response) {
+        if (this.droppedResponses.getAndIncrement() == 0) {
+            log.warn("Response queue is full; dropping responses until the listener catches up.");
+        }
+
+        if (this.dropListener != null) {
+            try {
+                this.dropListener.dropped(response);
+            } catch (final RuntimeException e) {
+                log.warn("Drop listener failed on response {}.", response, e);
+            }
+        }
+    }
+
+    private void scheduleDrain() {
+        if (this.draining.compareAndSet(false, true)) {
+            try {
+                this.executor.execute(this.drainTask);
+            } catch (final RejectedExecutionException e) {
+                this.draining.set(false);
+                log.warn("Executor rejected the delivery of responses.", e);
+            }
+        }
+    }
+
+    private void drain() {
+        do {
+            List<APNSNotificationResponse> batch = new ArrayList<>(this.maxBatchSize);
+            APNSNotificationResponse response;
+
+            while ((response = this.responses.poll()) != null) {
+                this.queuedResponses.decrementAndGet();
+                batch.add(response);
+
+                if (batch.size() == this.maxBatchSize) {
+                    this.deliver(batch);
+                    batch = new ArrayList<>(this.maxBatchSize);
+                }
+            }
+
+            if (!batch.isEmpty()) {
+                this.deliver(batch);
+            }
+
+            this.draining.set(false);
+
+            // A response offered after the last poll but before the flag was cleared found a drain under way
+        } while (!this.responses.isEmpty() && this.draining.compareAndSet(false, true));
+    }
+
+    private void deliver(final List<APNSNotificationResponse> batch) {
+        try {
+            this.listener.received(batch);
+        } catch (final RuntimeException e) {
+            log.warn("Response listener failed on a batch of {} responses.", batch.size(), e);
+        }
+    }
+}
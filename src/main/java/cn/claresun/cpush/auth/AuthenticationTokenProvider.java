@@ -0,0 +1,219 @@
+package cn.claresun.cpush.auth;
+
+import cn.claresun.cpush.util.Constant;
+import com.google.gson.JsonObject;
+import io.netty.util.AsciiString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.*;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Base64;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signs APNs provider authentication tokens, ES256 JSON web tokens that authenticate a connection for every topic of
+ * a team instead of a certificate per app. The signed token is cached and shared by all connections, and while the
+ * provider is started it is re-signed in the background before APNs would reject it as expired, so writing a
+ * notification never signs anything.
+ */
+public class AuthenticationTokenProvider {
+    private static final Logger log = LoggerFactory.getLogger(AuthenticationTokenProvider.class);
+
+    private static final Base64.Encoder BASE64_URL_ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final int ES256_COORDINATE_LENGTH = 32;
+
+    private final String teamId;
+    private final String keyId;
+    private final PrivateKey signingKey;
+
+    private volatile AsciiString authorizationHeader;
+    private volatile long issuedAtMillis;
+
+    // Owned by the provider rather than borrowed from a client, since the clients sharing it come and go
+    private ScheduledExecutorService refreshExecutor;
+    private int users;
+
+    public AuthenticationTokenProvider(final String teamId, final String keyId, final PrivateKey signingKey) {
+        this.teamId = Objects.requireNonNull(teamId, "Team ID must not be null.");
+        this.keyId = Objects.requireNonNull(keyId, "Key ID must not be null.");
+        this.signingKey = Objects.requireNonNull(signingKey, "Signing key must not be null.");
+    }
+
+    /**
+     * Creates a provider that signs with the private key in the given .p8 file, as downloaded from Apple's developer
+     * portal.
+     */
+    public static AuthenticationTokenProvider fromP8File(final File p8File, final String teamId, final String keyId) throws IOException, InvalidKeyException {
+        final StringBuilder base64Key = new StringBuilder();
+
+        for (final String line : Files.readAllLines(p8File.toPath(), StandardCharsets.US_ASCII)) {
+            if (!line.startsWith("-----")) {
+                base64Key.append(line.trim());
+            }
+        }
+
+        try {
+            final PKCS8EncodedKeySpec keySpec = new PKCS8EncodedKeySpec(Base64.getDecoder().decode(base64Key.toString()));
+            return new AuthenticationTokenProvider(teamId, keyId, KeyFactory.getInstance("EC").generatePrivate(keySpec));
+        } catch (final NoSuchAlgorithmException | InvalidKeySpecException | IllegalArgumentException e) {
+            throw new InvalidKeyException("Could not read an EC private key from " + p8File + ".", e);
+        }
+    }
+
+    /**
+     * Starts re-signing the token every {@link Constant#TOKEN_REFRESH_INTERVAL_MINUTES} on a daemon thread of the
+     * provider's own. Each client using the provider starts it when it connects and stops it when it disconnects; the
+     * thread runs until every start has been matched by a {@link #stop()}.
+     */
+    public synchronized void start() {
+        if (this.users++ > 0) {
+            return;
+        }
+
+        this.refreshExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "cpush-token-refresh");
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        this.refreshExecutor.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    AuthenticationTokenProvider.this.refresh();
+                } catch (final GeneralSecurityException e) {
+                    log.error("Failed to sign a new provider token; will retry.", e);
+                }
+            }
+        }, Constant.TOKEN_REFRESH_INTERVAL_MINUTES, Constant.TOKEN_REFRESH_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    public synchronized void stop() {
+        if (this.users == 0 || --this.users > 0) {
+            return;
+        }
+
+        this.refreshExecutor.shutdownNow();
+        this.refreshExecutor = null;
+    }
+
+    synchronized boolean isRefreshing() {
+        return this.refreshExecutor != null;
+    }
+
+    /**
+     * Returns the value of the {@code authorization} header, {@code bearer} followed by the current token. The token
+     * is only signed here if none has been signed yet or if background refreshing has fallen behind.
+     */
+    public AsciiString getAuthorizationHeader() throws GeneralSecurityException {
+        final AsciiString authorizationHeader = this.authorizationHeader;
+
+        if (authorizationHeader != null && System.currentTimeMillis() - this.issuedAtMillis <
+                TimeUnit.MINUTES.toMillis(Constant.TOKEN_REFRESH_INTERVAL_MINUTES + 5)) {
+            return authorizationHeader;
+        }
+
+        return this.refresh();
+    }
+
+    /**
+     * Re-signs the token after APNs rejected it as expired, unless the current token was signed less than
+     * {@link Constant#MIN_TOKEN_REFRESH_INTERVAL_MINUTES} ago; APNs rejects tokens that are replaced more often, and a
+     * burst of responses for the same expired token must not re-sign it once per response.
+     */
+    public synchronized void handleExpiredToken() throws GeneralSecurityException {
+        if (System.currentTimeMillis() - this.issuedAtMillis >= TimeUnit.MINUTES.toMillis(Constant.MIN_TOKEN_REFRESH_INTERVAL_MINUTES)) {
+            this.refresh();
+        }
+    }
+
+    /**
+     * Signs a new token and makes it the current one.
+     */
+    public synchronized AsciiString refresh() throws GeneralSecurityException {
+        final long issuedAtMillis = System.currentTimeMillis();
+
+        final JsonObject header = new JsonObject();
+        header.addProperty("alg", "ES256");
+        header.addProperty("kid", this.keyId);
+
+        final JsonObject claims = new JsonObject();
+        claims.addProperty("iss", this.teamId);
+        claims.addProperty("iat", TimeUnit.MILLISECONDS.toSeconds(issuedAtMillis));
+
+        final String signingInput = base64UrlEncode(header.toString().getBytes(StandardCharsets.UTF_8)) + "." +
+                base64UrlEncode(claims.toString().getBytes(StandardCharsets.UTF_8));
+
+        final Signature signature = Signature.getInstance("SHA256withECDSA");
+        signature.initSign(this.signingKey);
+        signature.update(signingInput.getBytes(StandardCharsets.US_ASCII));
+
+        final String token = signingInput + "." + base64UrlEncode(toJoseSignature(signature.sign()));
+
+        this.authorizationHeader = new AsciiString("bearer " + token);
+        this.issuedAtMillis = issuedAtMillis;
+
+        log.debug("Signed a new provider token for team {}.", this.teamId);
+
+        return this.authorizationHeader;
+    }
+
+    private static String base64UrlEncode(final byte[] bytes) {
+        return BASE64_URL_ENCODER.encodeToString(bytes);
+    }
+
+    /**
+     * Converts the DER-encoded ECDSA signature produced by the JDK, a SEQUENCE of the integers R and S, into the
+     * fixed-length R || S form that JSON web signatures use.
+     */
+    static byte[] toJoseSignature(final byte[] derSignature) throws SignatureException {
+        if (derSignature.length < 8 || derSignature[0] != 0x30) {
+            throw new SignatureException("Invalid DER-encoded ECDSA signature.");
+        }
+
+        // The sequence length takes one byte, or two if it is 128 or more
+        int offset = (derSignature[1] & 0x80) != 0 ? 3 : 2;
+
+        final byte[] joseSignature = new byte[2 * ES256_COORDINATE_LENGTH];
+
+        for (int i = 0; i < 2; i++) {
+            if (derSignature[offset] != 0x02) {
+                throw new SignatureException("Invalid DER-encoded ECDSA signature.");
+            }
+
+            int length = derSignature[offset + 1];
+            int start = offset + 2;
+
+            // Integers are signed, so a leading zero byte may precede a high first byte
+            while (length > ES256_COORDINATE_LENGTH && derSignature[start] == 0) {
+                start++;
+                length--;
+            }
+
+            if (length > ES256_COORDINATE_LENGTH) {
+                throw new SignatureException("ECDSA signature integer is too long for ES256.");
+            }
+
+            System.arraycopy(derSignature, start, joseSignature, (i + 1) * ES256_COORDINATE_LENGTH - length, length);
+            offset = start + length;
+        }
+
+        return joseSignature;
+    }
+}
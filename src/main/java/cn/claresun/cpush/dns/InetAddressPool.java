@@ -2,19 +2,31 @@ package cn.claresun.cpush.dns;
 
 import cn.claresun.cpush.exception.PoolNotReadyException;
 import cn.claresun.cpush.util.Constant;
+import cn.claresun.cpush.util.TransportUtil;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.resolver.dns.DnsNameResolver;
+import io.netty.resolver.dns.DnsNameResolverBuilder;
+import io.netty.resolver.dns.DnsServerAddresses;
+import io.netty.resolver.dns.NoopDnsCache;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.util.ArrayList;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by claresun on 16-11-8.
+ * <p>
+ * Holds the gateway addresses of a single host. Each client or client pool owns the pool of the host it talks to,
+ * and the addresses are resolved asynchronously through a Netty DNS resolver on one of the client's event loops.
  */
 public class InetAddressPool {
     private static final Logger log = LoggerFactory.getLogger(InetAddressPool.class);
@@ -22,76 +34,370 @@ public class InetAddressPool {
     private static final int DEFAULT_ADDRESSES_SIZE = 64;
     private int capacity;
 
-    ArrayList<InetAddressWrapper> addressList = new ArrayList<>(DEFAULT_ADDRESSES_SIZE);
-    private final AtomicInteger index = new AtomicInteger();
+    // Replaced as a whole on every refresh so that readers never see a partially updated list
+    private volatile List<InetAddressWrapper> addressList = Collections.emptyList();
 
-    private ScheduledExecutorService updaterExecutorService = Executors.newScheduledThreadPool(1);
+    private final String hostName;
 
-    public InetAddress next() {
-        return this.addressList.get(Math.abs(Math.abs(this.index.incrementAndGet() & (this.capacity - 1)))).getAddress();
+    private final List<OnAddressesChanged> listeners = new CopyOnWriteArrayList<>();
+
+    private final AtomicLong tlsHandshakes = new AtomicLong();
+    private final AtomicLong tlsResumptions = new AtomicLong();
+
+    private final EventLoop eventLoop;
+    private final DnsNameResolver resolver;
+
+    private Promise<InetAddressPool> initPromise;
+    private ScheduledFuture<?> updaterFuture;
+
+    /**
+     * Picks the next address to connect to. Ejected addresses are skipped and the remaining ones are chosen by smooth
+     * weighted round-robin, where faster addresses get proportionally more connections. If every address is ejected,
+     * the one whose cool-down ends first is returned.
+     */
+    public synchronized InetAddress next() {
+        if (this.addressList.isEmpty()) {
+            throw new IllegalStateException("The InetAddress pool of " + this.hostName + " is not initialized.");
+        }
+
+        final long now = System.currentTimeMillis();
+
+        long fastestLatencyNanos = Long.MAX_VALUE;
+
+        for (final InetAddressWrapper wrapper : this.addressList) {
+            final long latencyNanos = wrapper.getLatencyNanos();
+
+            if (latencyNanos > 0 && latencyNanos < fastestLatencyNanos && !wrapper.isEjected(now)) {
+                fastestLatencyNanos = latencyNanos;
+            }
+        }
+
+        InetAddressWrapper selected = null;
+        InetAddressWrapper leastEjected = null;
+        int totalWeight = 0;
+
+        for (final InetAddressWrapper wrapper : this.addressList) {
+            if (wrapper.isEjected(now)) {
+                if (leastEjected == null || wrapper.getEjectedUntilMillis() < leastEjected.getEjectedUntilMillis()) {
+                    leastEjected = wrapper;
+                }
+
+                continue;
+            }
+
+            final int weight = weight(wrapper.getLatencyNanos(), fastestLatencyNanos);
+
+            wrapper.currentWeight += weight;
+            totalWeight += weight;
+
+            if (selected == null || wrapper.currentWeight > selected.currentWeight) {
+                selected = wrapper;
+            }
+        }
+
+        if (selected == null) {
+            log.warn("Every address in the pool is ejected; trying {} ahead of its cool-down.", leastEjected);
+            return leastEjected.getAddress();
+        }
+
+        selected.currentWeight -= totalWeight;
+        return selected.getAddress();
+    }
+
+    private static int weight(final long latencyNanos, final long fastestLatencyNanos) {
+        // Addresses without a latency sample yet get the full weight so that they are tried early
+        if (latencyNanos <= 0 || fastestLatencyNanos == Long.MAX_VALUE) {
+            return Constant.MAX_ADDRESS_WEIGHT;
+        }
+
+        return (int) Math.max(1, Constant.MAX_ADDRESS_WEIGHT * fastestLatencyNanos / latencyNanos);
+    }
+
+    public void reportConnectFailure(final InetAddress address) {
+        final InetAddressWrapper wrapper = this.find(address);
+
+        if (wrapper != null) {
+            wrapper.recordConnectFailure(System.currentTimeMillis());
+            logIfEjected(wrapper, "connect");
+        }
     }
 
-    private void add(InetAddressWrapper addressWrapper) {
-        this.addressList.add(addressWrapper);
+    public void reportHandshakeFailure(final InetAddress address) {
+        final InetAddressWrapper wrapper = this.find(address);
+
+        if (wrapper != null) {
+            wrapper.recordHandshakeFailure(System.currentTimeMillis());
+            logIfEjected(wrapper, "TLS handshake");
+        }
     }
 
-    public InetAddressPool init(String hostName) throws PoolNotReadyException {
-        if (hostName == null || hostName.isEmpty()) {
-            hostName = Constant.PRODUCTION_APNS_HOST;
+    public void reportSuccess(final InetAddress address) {
+        final InetAddressWrapper wrapper = this.find(address);
+
+        if (wrapper != null) {
+            wrapper.recordSuccess();
         }
+    }
 
-        initializePool(hostName);
-        checkPoolCapacity();
-        return this;
+    public void reportLatency(final InetAddress address, final long latencyNanos) {
+        final InetAddressWrapper wrapper = this.find(address);
+
+        if (wrapper != null) {
+            wrapper.recordLatency(latencyNanos);
+        }
     }
 
-    private void checkPoolCapacity() throws PoolNotReadyException {
-        if (this.capacity < 4) {
-            log.error("The inetAddress pool's capacity is less than 4.");
-            throw new PoolNotReadyException();
+    /**
+     * Records a completed TLS handshake with the given address and whether it resumed an earlier session.
+     */
+    public void reportTlsHandshake(final InetAddress address, final boolean resumed) {
+        final InetAddressWrapper wrapper = this.find(address);
+
+        if (wrapper != null) {
+            wrapper.recordTlsHandshake(resumed);
+        }
+
+        this.tlsHandshakes.incrementAndGet();
+
+        if (resumed) {
+            this.tlsResumptions.incrementAndGet();
         }
     }
 
-    private void initializePool(String hostName) throws PoolNotReadyException {
+    public long getTlsHandshakes() {
+        return this.tlsHandshakes.get();
+    }
 
-        InetAddress[] addresses;
-        try {
-            // clear cache
-            InetAddressCacheUtil.removeAddressCache(hostName);
-            addresses = InetAddress.getAllByName(hostName);
+    public long getTlsResumptions() {
+        return this.tlsResumptions.get();
+    }
+
+    /**
+     * Returns the share of TLS handshakes with this host that resumed an earlier session, or 0 if no handshake has
+     * completed yet.
+     */
+    public double getTlsResumptionRate() {
+        final long handshakes = this.tlsHandshakes.get();
+        return handshakes > 0 ? (double) this.tlsResumptions.get() / handshakes : 0;
+    }
 
-        } catch (UnknownHostException e) {
-            log.error("The InetAddress pool initialize failured.");
-            throw new PoolNotReadyException();
+    private static void logIfEjected(final InetAddressWrapper wrapper, final String failure) {
+        if (wrapper.isEjected(System.currentTimeMillis())) {
+            log.warn("Ejected {} after repeated {} failures.", wrapper, failure);
         }
+    }
 
-        for (InetAddress item : addresses) {
-            if (item == null) {
-                return;
+    private InetAddressWrapper find(final InetAddress address) {
+        if (address == null) {
+            return null;
+        }
+
+        for (final InetAddressWrapper wrapper : this.addressList) {
+            if (wrapper.getAddress().equals(address)) {
+                return wrapper;
             }
-            this.add(new InetAddressWrapper(item));
-            this.capacity++;
         }
+
+        return null;
+    }
+
+    /**
+     * Returns a snapshot of the addresses in the pool together with their health statistics.
+     */
+    public synchronized List<InetAddressWrapper> getAddresses() {
+        return new ArrayList<>(this.addressList);
+    }
+
+    public void addListener(final OnAddressesChanged listener) {
+        this.listeners.add(listener);
+    }
+
+    public void removeListener(final OnAddressesChanged listener) {
+        this.listeners.remove(listener);
     }
 
-    private void initializeUpdater() {
-        updaterExecutorService.scheduleAtFixedRate(new Runnable() {
+    public boolean contains(final InetAddress address) {
+        return this.find(address) != null;
+    }
+
+    public String getHostName() {
+        return this.hostName;
+    }
+
+    /**
+     * Resolves the host on the resolver's event loop without blocking the caller. The returned future is shared by
+     * all callers until the resolution finishes; a failed resolution is retried by the next call. Once the pool is
+     * ready, it re-resolves the host every {@link Constant#DNS_REFRESH_INTERVAL_MINUTES} minutes.
+     */
+    public synchronized Future<InetAddressPool> init() {
+        if (this.initPromise != null) {
+            return this.initPromise;
+        }
+
+        final Promise<InetAddressPool> initPromise = this.eventLoop.newPromise();
+        this.initPromise = initPromise;
+
+        this.resolver.resolveAll(this.hostName).addListener(new GenericFutureListener<Future<List<InetAddress>>>() {
+
             @Override
-            public void run() {
+            public void operationComplete(final Future<List<InetAddress>> future) throws Exception {
+                if (future.isSuccess()) {
+                    InetAddressPool.this.update(future.getNow());
+                }
+
+                if (future.isSuccess() && InetAddressPool.this.checkPoolCapacity()) {
+                    InetAddressPool.this.initializeUpdater();
+                    initPromise.trySuccess(InetAddressPool.this);
+                } else {
+                    if (!future.isSuccess()) {
+                        log.error("The InetAddress pool initialize failured.", future.cause());
+                    }
 
+                    synchronized (InetAddressPool.this) {
+                        InetAddressPool.this.initPromise = null;
+                    }
+
+                    initPromise.tryFailure(new PoolNotReadyException(InetAddressPool.this.hostName));
+                }
             }
-        }, 1, 30, TimeUnit.MINUTES);
+        });
+
+        return initPromise;
     }
 
-    //Initialization
-    private static class SingletonHolder {
-        private static InetAddressPool instance = new InetAddressPool();
+    /**
+     * Re-resolves the host and replaces the address set. Addresses that are still resolved keep their health
+     * statistics. Because DNS answers usually contain a rotating subset of the gateway addresses, an address is only
+     * dropped after it has been missing from {@link Constant#DNS_REMOVAL_THRESHOLD} consecutive answers. Listeners
+     * are notified of every change.
+     */
+    public Future<List<InetAddress>> refresh() {
+        final Promise<List<InetAddress>> refreshPromise = this.eventLoop.newPromise();
+
+        this.resolver.resolveAll(this.hostName).addListener(new GenericFutureListener<Future<List<InetAddress>>>() {
+
+            @Override
+            public void operationComplete(final Future<List<InetAddress>> future) throws Exception {
+                if (future.isSuccess()) {
+                    InetAddressPool.this.update(future.getNow());
+                    refreshPromise.trySuccess(future.getNow());
+                } else {
+                    log.warn("Failed to re-resolve {}; keeping the current addresses.", InetAddressPool.this.hostName, future.cause());
+                    refreshPromise.tryFailure(future.cause());
+                }
+            }
+        });
+
+        return refreshPromise;
     }
 
-    private InetAddressPool() {
+    void update(final List<InetAddress> addresses) {
+        final List<InetAddress> added = new ArrayList<>();
+        final List<InetAddress> removed = new ArrayList<>();
+
+        synchronized (this) {
+            final Map<InetAddress, InetAddressWrapper> missing = new LinkedHashMap<>();
+
+            for (final InetAddressWrapper wrapper : this.addressList) {
+                missing.put(wrapper.getAddress(), wrapper);
+            }
+
+            final List<InetAddressWrapper> updatedList = new ArrayList<>(DEFAULT_ADDRESSES_SIZE);
+
+            for (final InetAddress address : addresses) {
+                if (address == null) {
+                    continue;
+                }
+
+                InetAddressWrapper wrapper = missing.remove(address);
+
+                if (wrapper == null) {
+                    wrapper = new InetAddressWrapper(address);
+                    added.add(address);
+                }
+
+                wrapper.missedResolutions = 0;
+                updatedList.add(wrapper);
+            }
+
+            if (updatedList.isEmpty()) {
+                log.warn("Resolution of {} returned no addresses; keeping the current addresses.", this.hostName);
+                return;
+            }
+
+            for (final InetAddressWrapper wrapper : missing.values()) {
+                if (++wrapper.missedResolutions < Constant.DNS_REMOVAL_THRESHOLD) {
+                    updatedList.add(wrapper);
+                } else {
+                    removed.add(wrapper.getAddress());
+                }
+            }
+
+            this.addressList = updatedList;
+            this.capacity = updatedList.size();
+        }
+
+        if (!added.isEmpty() || !removed.isEmpty()) {
+            log.info("Addresses of {} changed; added: {}, removed: {}.", this.hostName, added, removed);
+
+            for (final OnAddressesChanged listener : this.listeners) {
+                try {
+                    listener.changed(added, removed);
+                } catch (final Exception e) {
+                    log.warn("Address change listener failed.", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops re-resolving the host and releases the resolver.
+     */
+    public synchronized void close() {
+        if (this.updaterFuture != null) {
+            this.updaterFuture.cancel(false);
+            this.updaterFuture = null;
+        }
+
+        this.listeners.clear();
+        this.resolver.close();
+    }
+
+    private synchronized boolean checkPoolCapacity() {
+        if (this.capacity < 4) {
+            log.error("The inetAddress pool's capacity is less than 4.");
+            return false;
+        }
+
+        return true;
+    }
+
+    private synchronized void initializeUpdater() {
+        if (this.updaterFuture != null) {
+            return;
+        }
+
+        this.updaterFuture = this.eventLoop.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                InetAddressPool.this.refresh();
+            }
+        }, Constant.DNS_REFRESH_INTERVAL_MINUTES, Constant.DNS_REFRESH_INTERVAL_MINUTES, TimeUnit.MINUTES);
     }
 
-    public static InetAddressPool getInstance() {
-        return SingletonHolder.instance;
+    public InetAddressPool(final String hostName, final EventLoopGroup eventLoopGroup) {
+        this(hostName, eventLoopGroup, ResolvConf.nameServerAddresses());
+    }
+
+    public InetAddressPool(final String hostName, final EventLoopGroup eventLoopGroup, final DnsServerAddresses nameServerAddresses) {
+        this.hostName = (hostName == null || hostName.isEmpty()) ? Constant.PRODUCTION_APNS_HOST : hostName;
+        this.eventLoop = eventLoopGroup.next();
+
+        // The pool is the cache; every refresh must reach the name server to see the current gateway addresses
+        this.resolver = new DnsNameResolverBuilder(this.eventLoop)
+                .channelType(TransportUtil.getDatagramChannelClass(eventLoopGroup))
+                .resolveCache(NoopDnsCache.INSTANCE)
+                .nameServerAddresses(nameServerAddresses)
+                .build();
     }
 }
@@ -1,5 +1,7 @@
 package cn.claresun.cpush.dns;
 
+import cn.claresun.cpush.util.Constant;
+
 import java.net.InetAddress;
 import java.util.ArrayList;
 
@@ -10,6 +12,23 @@ public class InetAddressWrapper {
     private InetAddress address;
     private int retryTimes;
 
+    private int connectFailures;
+    private int handshakeFailures;
+
+    private int ejections;
+    private long ejectedUntilMillis;
+
+    private long latencyNanos = -1;
+
+    private int tlsHandshakes;
+    private int tlsResumptions;
+
+    // Running weight of the smooth weighted round-robin in InetAddressPool.next()
+    int currentWeight;
+
+    // Consecutive re-resolutions that did not return this address
+    int missedResolutions;
+
     public InetAddressWrapper(InetAddress address) {
         this.address = address;
         this.retryTimes = 0;
@@ -23,18 +42,98 @@ public class InetAddressWrapper {
         this.address = address;
     }
 
-    public int getRetryTimes() {
+    public synchronized int getRetryTimes() {
         return retryTimes;
     }
 
-    public void setRetryTimes(int retryTimes) {
+    public synchronized void setRetryTimes(int retryTimes) {
         this.retryTimes = retryTimes;
     }
 
-    public void incrRetryTimes() {
+    public synchronized void incrRetryTimes() {
         this.retryTimes += 1;
     }
 
+    public synchronized int getConnectFailures() {
+        return connectFailures;
+    }
+
+    public synchronized int getHandshakeFailures() {
+        return handshakeFailures;
+    }
+
+    /**
+     * Returns the smoothed response latency observed on this address, or -1 if no latency has been recorded yet.
+     */
+    public synchronized long getLatencyNanos() {
+        return latencyNanos;
+    }
+
+    public synchronized int getTlsHandshakes() {
+        return tlsHandshakes;
+    }
+
+    public synchronized int getTlsResumptions() {
+        return tlsResumptions;
+    }
+
+    public synchronized boolean isEjected(final long nowMillis) {
+        return nowMillis < this.ejectedUntilMillis;
+    }
+
+    public synchronized long getEjectedUntilMillis() {
+        return ejectedUntilMillis;
+    }
+
+    synchronized void recordConnectFailure(final long nowMillis) {
+        this.connectFailures++;
+        this.recordFailure(nowMillis);
+    }
+
+    synchronized void recordHandshakeFailure(final long nowMillis) {
+        this.handshakeFailures++;
+        this.recordFailure(nowMillis);
+    }
+
+    synchronized void recordSuccess() {
+        this.retryTimes = 0;
+        this.ejections = 0;
+        this.ejectedUntilMillis = 0;
+    }
+
+    synchronized void recordLatency(final long latencyNanos) {
+        if (this.latencyNanos < 0) {
+            this.latencyNanos = latencyNanos;
+        } else {
+            this.latencyNanos += (latencyNanos - this.latencyNanos) / Constant.ADDRESS_LATENCY_SMOOTHING_FACTOR;
+        }
+    }
+
+    /**
+     * Records a completed TLS handshake with this address and whether it resumed an earlier session.
+     */
+    synchronized void recordTlsHandshake(final boolean resumed) {
+        this.tlsHandshakes++;
+
+        if (resumed) {
+            this.tlsResumptions++;
+        }
+    }
+
+    private void recordFailure(final long nowMillis) {
+        this.incrRetryTimes();
+
+        // Once the breaker has tripped, retryTimes stays at the threshold until a connection succeeds; the address is
+        // given a single trial after each cool-down and is ejected again, for longer, if that trial fails too.
+        if (this.retryTimes >= Constant.ADDRESS_FAILURE_THRESHOLD) {
+            final long coolDownMillis = Math.min(Constant.ADDRESS_EJECTION_MILLIS << Math.min(this.ejections, 16),
+                    Constant.MAX_ADDRESS_EJECTION_MILLIS);
+
+            this.ejections++;
+            this.ejectedUntilMillis = nowMillis + coolDownMillis;
+        }
+    }
+
     public ArrayList<InetAddressWrapper> asWrapperList(InetAddress[] addresses) {
         if (addresses == null || addresses.length <= 0) {
             return null;
@@ -56,12 +155,24 @@ public class InetAddressWrapper {
 
         InetAddressWrapper that = (InetAddressWrapper) o;
 
-        return address.getHostName().equals(that.address.getHostName());
+        // All addresses of a pool share the host name, so compare the addresses themselves
+        return address.equals(that.address);
 
     }
 
     @Override
     public int hashCode() {
-        return address.getHostName().hashCode();
+        return address.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "InetAddressWrapper{" +
+                "address=" + address +
+                ", retryTimes=" + getRetryTimes() +
+                ", latencyNanos=" + getLatencyNanos() +
+                ", ejectedUntilMillis=" + getEjectedUntilMillis() +
+                ", tlsResumptions=" + getTlsResumptions() + "/" + getTlsHandshakes() +
+                '}';
     }
 }
@@ -0,0 +1,11 @@
+package cn.claresun.cpush.dns;
+
+import java.net.InetAddress;
+import java.util.Collection;
+
+/**
+ * Notified by {@link InetAddressPool} when a re-resolution of its host adds or removes addresses.
+ */
+public interface OnAddressesChanged {
+    void changed(Collection<InetAddress> added, Collection<InetAddress> removed);
+}
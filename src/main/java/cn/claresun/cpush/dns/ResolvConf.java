@@ -0,0 +1,87 @@
+package cn.claresun.cpush.dns;
+
+import cn.claresun.cpush.util.Constant;
+import io.netty.resolver.dns.DnsServerAddresses;
+import io.netty.util.NetUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the system's name servers from {@code /etc/resolv.conf}.
+ * <p>
+ * These are the resolvers the host itself uses, so the pool sees the same gateway addresses as the rest of the host.
+ * Netty's {@link DnsServerAddresses#defaultAddresses()} is only used when the file gives no name server.
+ */
+public final class ResolvConf {
+    private static final Logger log = LoggerFactory.getLogger(ResolvConf.class);
+
+    private ResolvConf() {
+    }
+
+    /**
+     * Returns the name servers of {@link Constant#RESOLV_CONF_PATH}, tried in the order they are listed, or Netty's
+     * default name servers if the file is missing, cannot be read or lists no name server.
+     */
+    public static DnsServerAddresses nameServerAddresses() {
+        final List<InetSocketAddress> addresses;
+
+        try (final Reader reader = new FileReader(Constant.RESOLV_CONF_PATH)) {
+            addresses = parse(reader);
+        } catch (final IOException e) {
+            log.debug("Failed to read the name servers of {}, using the default name servers.", Constant.RESOLV_CONF_PATH, e);
+            return DnsServerAddresses.defaultAddresses();
+        }
+
+        if (addresses.isEmpty()) {
+            log.debug("No name server is listed in {}, using the default name servers.", Constant.RESOLV_CONF_PATH);
+            return DnsServerAddresses.defaultAddresses();
+        }
+
+        return DnsServerAddresses.sequential(addresses);
+    }
+
+    /**
+     * Returns the addresses of the {@code nameserver} lines of a resolv.conf, in order.
+     */
+    static List<InetSocketAddress> parse(final Reader reader) throws IOException {
+        final List<InetSocketAddress> addresses = new ArrayList<>();
+        final BufferedReader lines = new BufferedReader(reader);
+
+        String line;
+
+        while ((line = lines.readLine()) != null) {
+            final String[] fields = line.trim().split("\\s+");
+
+            if (fields.length < 2 || !"nameserver".equals(fields[0])) {
+                continue;
+            }
+
+            // The address may carry an IPv6 zone, which the JDK resolves but Netty's literal check does not accept
+            final String address = fields[1];
+            final int zoneIndex = address.indexOf('%');
+
+            if (!NetUtil.isValidIpV4Address(address) &&
+                    !NetUtil.isValidIpV6Address(zoneIndex < 0 ? address : address.substring(0, zoneIndex))) {
+                throw new IOException("Invalid name server address: " + address);
+            }
+
+            try {
+                addresses.add(new InetSocketAddress(InetAddress.getByName(address), Constant.DNS_PORT));
+            } catch (final UnknownHostException e) {
+                throw new IOException("Invalid name server address: " + address, e);
+            }
+        }
+
+        return addresses;
+    }
+}
@@ -0,0 +1,20 @@
+package cn.claresun.cpush.exception;
+
+/**
+ * Thrown when a notification cannot be queued because the connection's pending queue is full, or when a queued
+ * notification is dropped to make room for one of higher priority.
+ */
+public class PendingQueueFullException extends Exception {
+    public PendingQueueFullException() {
+        super();
+    }
+
+    public PendingQueueFullException(String message) {
+        super(message);
+    }
+
+    @Override
+    public Throwable fillInStackTrace() {
+        return this;
+    }
+}
@@ -0,0 +1,23 @@
+package cn.claresun.cpush.exception;
+
+/**
+ * Signals that the APNs gateway did not answer a notification within the client's response timeout.
+ */
+public class ResponseTimeoutException extends Exception {
+    public ResponseTimeoutException() {
+        super();
+    }
+
+    public ResponseTimeoutException(String message) {
+        super(message);
+    }
+
+    public ResponseTimeoutException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    @Override
+    public Throwable fillInStackTrace() {
+        return this;
+    }
+}
@@ -2,29 +2,37 @@ package cn.claresun.cpush.handler;
 
 import cn.claresun.cpush.APNSClient;
 import cn.claresun.cpush.OnDataReceived;
+import cn.claresun.cpush.auth.AuthenticationTokenProvider;
+import cn.claresun.cpush.dns.InetAddressPool;
+import cn.claresun.cpush.exception.PendingQueueFullException;
+import cn.claresun.cpush.exception.ResponseTimeoutException;
 import cn.claresun.cpush.util.Constant;
-import com.google.gson.*;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoop;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http2.*;
 import io.netty.handler.timeout.IdleState;
 import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.handler.timeout.WriteTimeoutException;
+import io.netty.util.AsciiString;
 import io.netty.util.concurrent.GenericFutureListener;
 import io.netty.util.concurrent.PromiseCombiner;
 import io.netty.util.concurrent.ScheduledFuture;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.lang.reflect.Type;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by claresun on 16-8-15.
@@ -32,8 +40,9 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class APNSClientHandler extends Http2ConnectionHandler {
     private static final Logger log = LoggerFactory.getLogger(APNSClientHandler.class);
 
-    private final AtomicBoolean receivedInitialSettings = new AtomicBoolean(false);
+    private ChannelPromise initialSettingsPromise;
     private long nextStreamId = 1;
+    private boolean rotationRequested;
     private final String authority;
 
     private long nextPingId = new Random().nextLong();
@@ -42,23 +51,91 @@ public class APNSClientHandler extends Http2ConnectionHandler {
     private final int maxUnflushedNotifications;
     private int unflushedNotifications = 0;
 
+    private final long flushLatencyTargetNanos;
+    private final boolean adaptiveFlush;
+    private volatile int flushBatchSize;
+    private long firstUnflushedWriteNanos;
+    private boolean flushScheduled;
+    private Runnable flushTask;
+
+    private final int maxPendingNotifications;
+    private final PendingQueuePolicy pendingQueuePolicy;
+    private final ArrayDeque<PendingWrite> immediateWrites = new ArrayDeque<>();
+    private final ArrayDeque<PendingWrite> conservePowerWrites = new ArrayDeque<>();
+    private int immediateWriteCredits = Constant.IMMEDIATE_SCHEDULING_WEIGHT;
+    private volatile int pendingQueueDepth;
+    private boolean retired;
+
+    private volatile long notificationsWritten;
+
+    private MeasuringHeadersEncoder headersEncoder;
+    private volatile Http2Settings remoteSettings = new Http2Settings();
+
+    /**
+     * Keeps the request path and non-zero expiration times, which differ between nearly all notifications, out of the
+     * HPACK dynamic table, where they would only evict the topic, authority and authorization entries that every
+     * request can reuse.
+     */
+    private static final Http2HeadersEncoder.SensitivityDetector APNS_SENSITIVITY_DETECTOR = new Http2HeadersEncoder.SensitivityDetector() {
+
+        @Override
+        public boolean isSensitive(final CharSequence name, final CharSequence value) {
+            if (Http2Headers.PseudoHeaderName.PATH.value().contentEquals(name)) {
+                return true;
+            }
+
+            return Constant.APNS_EXPIRATION_HEADER.contentEqualsIgnoreCase(name) && !ASCII_ZERO.contentEquals(value);
+        }
+    };
+
+    private static final PendingQueueFullException PENDING_QUEUE_FULL_EXCEPTION =
+            new PendingQueueFullException("The connection's pending queue is full.");
+
+    private static final ResponseTimeoutException RESPONSE_TIMEOUT_EXCEPTION =
+            new ResponseTimeoutException("The gateway did not answer the notification in time.");
+
+    private static final IllegalStateException STREAM_RESET_EXCEPTION =
+            new IllegalStateException("The gateway reset the notification's stream.");
+
+    private static final IllegalStateException CHANNEL_CLOSED_EXCEPTION =
+            new IllegalStateException("Channel closed before the gateway answered the notification.");
+
     private OnDataReceived onDataReceived;
 
-    private final Map<Integer, APNSNotification> pushNotificationsByStreamId = new HashMap<>();
-    private final Map<Integer, Http2Headers> headersByStreamId = new HashMap<>();
+    private final StreamTable<APNSNotificationRequest> requestsByStreamId = new StreamTable<>(Constant.INITIAL_STREAM_TABLE_CAPACITY);
+    private final StreamTable<Http2Headers> headersByStreamId = new StreamTable<>(Constant.INITIAL_STREAM_TABLE_CAPACITY);
+    private final StreamTable<ByteBuf> partialBodiesByStreamId = new StreamTable<>(Constant.INITIAL_STREAM_TABLE_CAPACITY);
+    private final StreamTable<ScheduledFuture<?>> responseTimeoutsByStreamId = new StreamTable<>(Constant.INITIAL_STREAM_TABLE_CAPACITY);
+
+    private final long responseTimeoutNanos;
+
+    private final Map<String, Http2Headers[]> headerTemplatesByTopic = new HashMap<>();
+
+    private static final AsciiString APNS_PATH_PREFIX = new AsciiString(Constant.APNS_PATH_PREFIX);
+    private static final AsciiString ASCII_ZERO = new AsciiString("0");
 
     private final APNSClient apnsClient;
+    private final InetAddressPool inetAddressPool;
+    private final AuthenticationTokenProvider authenticationTokenProvider;
 
-    private static final Gson gson = new GsonBuilder()
-            .registerTypeAdapter(Date.class, new DateAsMillisecondsSinceEpochTypeAdapter())
-            .create();
+    // Response latency is sampled on one stream at a time and reported to the address pool
+    private int latencySampleStreamId = -1;
+    private long latencySampleStartNanos;
 
-    protected APNSClientHandler(Http2ConnectionDecoder decoder, Http2ConnectionEncoder encoder, APNSClient apnsClient, Http2Settings initialSettings, final String authority, final int maxUnflushedNotifications, OnDataReceived onDataReceived) {
+    protected APNSClientHandler(Http2ConnectionDecoder decoder, Http2ConnectionEncoder encoder, APNSClient apnsClient, InetAddressPool inetAddressPool, AuthenticationTokenProvider authenticationTokenProvider, Http2Settings initialSettings, final String authority, final int maxUnflushedNotifications, final long flushLatencyTargetNanos, final boolean adaptiveFlush, final int maxPendingNotifications, final PendingQueuePolicy pendingQueuePolicy, final long responseTimeoutNanos, OnDataReceived onDataReceived) {
         super(decoder, encoder, initialSettings);
 
         this.apnsClient = apnsClient;
+        this.inetAddressPool = inetAddressPool;
+        this.authenticationTokenProvider = authenticationTokenProvider;
         this.authority = authority;
         this.maxUnflushedNotifications = maxUnflushedNotifications;
+        this.flushLatencyTargetNanos = flushLatencyTargetNanos;
+        this.adaptiveFlush = adaptiveFlush;
+        this.flushBatchSize = Math.max(1, maxUnflushedNotifications);
+        this.maxPendingNotifications = maxPendingNotifications;
+        this.pendingQueuePolicy = pendingQueuePolicy;
+        this.responseTimeoutNanos = responseTimeoutNanos;
         this.onDataReceived = onDataReceived;
 
     }
@@ -66,8 +143,15 @@ public class APNSClientHandler extends Http2ConnectionHandler {
     public static class APNSClientHandlerBuilder extends AbstractHttp2ConnectionHandlerBuilder<APNSClientHandler, APNSClientHandlerBuilder> {
 
         private APNSClient apnsClient;
+        private InetAddressPool inetAddressPool;
+        private AuthenticationTokenProvider authenticationTokenProvider;
         private String authority;
         private int maxUnflushedNotifications = 0;
+        private long flushLatencyTargetNanos = TimeUnit.MICROSECONDS.toNanos(Constant.DEFAULT_FLUSH_LATENCY_TARGET_MICROS);
+        private boolean adaptiveFlush;
+        private int maxPendingNotifications = Constant.DEFAULT_MAX_PENDING_NOTIFICATIONS;
+        private PendingQueuePolicy pendingQueuePolicy = PendingQueuePolicy.FAIL_FAST;
+        private long responseTimeoutNanos;
         private OnDataReceived onDataReceived;
 
         public APNSClientHandlerBuilder apnsClient(final APNSClient apnsClient) {
@@ -79,6 +163,24 @@ public class APNSClientHandler extends Http2ConnectionHandler {
             return this.apnsClient;
         }
 
+        public APNSClientHandlerBuilder inetAddressPool(final InetAddressPool inetAddressPool) {
+            this.inetAddressPool = inetAddressPool;
+            return this;
+        }
+
+        public InetAddressPool inetAddressPool() {
+            return this.inetAddressPool;
+        }
+
+        public APNSClientHandlerBuilder authenticationTokenProvider(final AuthenticationTokenProvider authenticationTokenProvider) {
+            this.authenticationTokenProvider = authenticationTokenProvider;
+            return this;
+        }
+
+        public AuthenticationTokenProvider authenticationTokenProvider() {
+            return this.authenticationTokenProvider;
+        }
+
         public APNSClientHandlerBuilder authority(final String authority) {
             this.authority = authority;
             return this;
@@ -97,6 +199,63 @@ public class APNSClientHandler extends Http2ConnectionHandler {
             return this.maxUnflushedNotifications;
         }
 
+        /**
+         * Sets how long a written notification may wait for more writes to join its flush. Writes are flushed as soon
+         * as the event loop has no more queued tasks, so the target only bounds the wait under sustained load.
+         */
+        public APNSClientHandlerBuilder flushLatencyTargetNanos(final long flushLatencyTargetNanos) {
+            this.flushLatencyTargetNanos = flushLatencyTargetNanos;
+            return this;
+        }
+
+        public long flushLatencyTargetNanos() {
+            return this.flushLatencyTargetNanos;
+        }
+
+        /**
+         * If set, the number of notifications per flush starts at {@link #maxUnflushedNotifications()} and is tuned
+         * between 1 and {@link Constant#MAX_FLUSH_BATCH_SIZE} so that writes wait no longer than the latency target.
+         */
+        public APNSClientHandlerBuilder adaptiveFlush(final boolean adaptiveFlush) {
+            this.adaptiveFlush = adaptiveFlush;
+            return this;
+        }
+
+        public boolean adaptiveFlush() {
+            return this.adaptiveFlush;
+        }
+
+        /**
+         * Sets how many notifications may wait for a free stream once the gateway's concurrent stream limit is
+         * reached, and what happens to notifications that arrive while that many are waiting.
+         */
+        public APNSClientHandlerBuilder pendingQueue(final int maxPendingNotifications, final PendingQueuePolicy pendingQueuePolicy) {
+            this.maxPendingNotifications = maxPendingNotifications;
+            this.pendingQueuePolicy = Objects.requireNonNull(pendingQueuePolicy, "Pending queue policy must not be null.");
+            return this;
+        }
+
+        public int maxPendingNotifications() {
+            return this.maxPendingNotifications;
+        }
+
+        public PendingQueuePolicy pendingQueuePolicy() {
+            return this.pendingQueuePolicy;
+        }
+
+        /**
+         * Sets how long the gateway may take to answer a written notification before its stream is reset and the
+         * notification is reported as unanswered. Zero disables the timeout.
+         */
+        public APNSClientHandlerBuilder responseTimeoutNanos(final long responseTimeoutNanos) {
+            this.responseTimeoutNanos = responseTimeoutNanos;
+            return this;
+        }
+
+        public long responseTimeoutNanos() {
+            return this.responseTimeoutNanos;
+        }
+
         public OnDataReceived onDataReceived() {
             return this.onDataReceived;
         }
@@ -117,18 +276,59 @@ public class APNSClientHandler extends Http2ConnectionHandler {
             return super.encoderEnforceMaxConcurrentStreams(enforceMaxConcurrentStreams);
         }
 
+        /**
+         * Sets the SETTINGS sent to the gateway, e.g. the HPACK table size, initial window size and maximum frame size
+         * the client accepts.
+         */
         @Override
-        public APNSClientHandler build(final Http2ConnectionDecoder decoder, final Http2ConnectionEncoder encoder, final Http2Settings initialSettings) {
-            Objects.requireNonNull(this.authority(), "Authority must be set before building an ApnsClientHandler.");
+        public APNSClientHandlerBuilder initialSettings(final Http2Settings settings) {
+            return super.initialSettings(settings);
+        }
+
+        private MeasuringHeadersEncoder headersEncoder;
+
+        /**
+         * Assembles the codec here instead of through {@code codec()}, which cannot be combined with
+         * {@link #server(boolean)} or {@link #encoderEnforceMaxConcurrentStreams(boolean)}, and builds the handler on
+         * it directly.
+         */
+        @Override
+        public APNSClientHandler build() {
+            final Http2Connection connection = new DefaultHttp2Connection(this.isServer());
+
+            this.headersEncoder = new MeasuringHeadersEncoder(new DefaultHttp2HeadersEncoder(APNS_SENSITIVITY_DETECTOR));
+
+            Http2ConnectionEncoder encoder = new DefaultHttp2ConnectionEncoder(connection, new DefaultHttp2FrameWriter(this.headersEncoder));
+
+            if (this.encoderEnforceMaxConcurrentStreams()) {
+                encoder = new StreamBufferingEncoder(encoder);
+            }
+
+            final Http2ConnectionDecoder decoder = new DefaultHttp2ConnectionDecoder(connection, encoder, new DefaultHttp2FrameReader(this.isValidateHeaders()));
+
+            final APNSClientHandler handler;
+
+            try {
+                handler = this.build(decoder, encoder, this.initialSettings());
+            } catch (final RuntimeException e) {
+                encoder.close();
+                decoder.close();
+                throw e;
+            }
+
+            handler.gracefulShutdownTimeoutMillis(this.gracefulShutdownTimeoutMillis());
 
-            final APNSClientHandler handler = new APNSClientHandler(decoder, encoder, this.apnsClient(), initialSettings, this.authority(), this.maxUnflushedNotifications(), this.onDataReceived());
-            this.frameListener(handler.new APNSClientHandlerFrameAdapter());
             return handler;
         }
 
         @Override
-        public APNSClientHandler build() {
-            return super.build();
+        public APNSClientHandler build(final Http2ConnectionDecoder decoder, final Http2ConnectionEncoder encoder, final Http2Settings initialSettings) {
+            Objects.requireNonNull(this.authority(), "Authority must be set before building an ApnsClientHandler.");
+
+            final APNSClientHandler handler = new APNSClientHandler(decoder, encoder, this.apnsClient(), this.inetAddressPool(), this.authenticationTokenProvider(), initialSettings, this.authority(), this.maxUnflushedNotifications(), this.flushLatencyTargetNanos(), this.adaptiveFlush(), this.maxPendingNotifications(), this.pendingQueuePolicy(), this.responseTimeoutNanos(), this.onDataReceived());
+            handler.headersEncoder = this.headersEncoder;
+            decoder.frameListener(handler.new APNSClientHandlerFrameAdapter());
+            return handler;
         }
 
 
@@ -137,35 +337,95 @@ public class APNSClientHandler extends Http2ConnectionHandler {
     private class APNSClientHandlerFrameAdapter extends Http2FrameAdapter {
         @Override
         public void onSettingsRead(final ChannelHandlerContext context, final Http2Settings settings) {
-            log.trace("Received settings from APNs gateway: {}", settings);
+            log.debug("Received settings from APNs gateway: {}", settings);
+
+            // A SETTINGS frame only carries the values that change
+            final Http2Settings remoteSettings = new Http2Settings();
+            remoteSettings.putAll(APNSClientHandler.this.remoteSettings);
+            remoteSettings.putAll(settings);
+
+            APNSClientHandler.this.remoteSettings = remoteSettings;
+
+            APNSClientHandler.this.initialSettingsPromise.trySuccess();
         }
 
-        @SuppressWarnings({"unchecked"})
         @Override
         public int onDataRead(final ChannelHandlerContext context, final int streamId, final ByteBuf data, final int padding, final boolean endOfStream) throws Http2Exception {
-            log.trace("Received data from APNs gateway on stream {}: {}", streamId, data.toString(StandardCharsets.UTF_8));
+            if (log.isTraceEnabled()) {
+                log.trace("Received data from APNs gateway on stream {}: {}", streamId, data.toString(StandardCharsets.UTF_8));
+            }
 
             final int bytesProcessed = data.readableBytes() + padding;
 
-            if (endOfStream) {
-                final Http2Headers headers = APNSClientHandler.this.headersByStreamId.remove(streamId);
-                final APNSNotification pushNotification = APNSClientHandler.this.pushNotificationsByStreamId.remove(streamId);
+            final ByteBuf partialBody = APNSClientHandler.this.partialBodiesByStreamId.remove(streamId);
 
-                final boolean success = HttpResponseStatus.OK.equals(HttpResponseStatus.parseLine(headers.status()));
-                final ErrorResponse errorResponse = gson.fromJson(data.toString(StandardCharsets.UTF_8), ErrorResponse.class);
+            if (endOfStream) {
+                final ByteBuf body;
 
-                APNSClientHandler.this.onDataReceived.received(new APNSNotificationResponse(
-                        pushNotification, success, errorResponse.getReason(), errorResponse.getTimestamp()));
+                if (partialBody != null) {
+                    partialBody.writeBytes(data);
+                    body = partialBody;
+                } else {
+                    body = data;
+                }
 
-                /*APNSClientHandler.this.apnsClient.handlePushNotificationResponse(new APNSNotificationResponse(
-                        pushNotification, success, errorResponse.getReason(), errorResponse.getTimestamp()));*/
+                try {
+                    this.handleErrorResponse(context, streamId, body);
+                } finally {
+                    if (partialBody != null) {
+                        partialBody.release();
+                    }
+                }
             } else {
-                log.error("Gateway sent a DATA frame that was not the end of a stream.");
+                // The body continues in another DATA frame
+                final ByteBuf accumulatedBody = partialBody != null ? partialBody : context.alloc().buffer(data.readableBytes());
+                accumulatedBody.writeBytes(data);
+
+                APNSClientHandler.this.partialBodiesByStreamId.put(streamId, accumulatedBody);
             }
 
             return bytesProcessed;
         }
 
+        @SuppressWarnings({"unchecked"})
+        private void handleErrorResponse(final ChannelHandlerContext context, final int streamId, final ByteBuf body) {
+            APNSClientHandler.this.completeLatencySample(context, streamId);
+
+            final Http2Headers headers = APNSClientHandler.this.headersByStreamId.remove(streamId);
+            final APNSNotificationRequest request = APNSClientHandler.this.removeRequest(streamId);
+
+            if (request == null || headers == null) {
+                // The stream timed out and was reset before its response arrived
+                log.debug("Ignoring response on stream {}, which is no longer awaited.", streamId);
+                return;
+            }
+
+            final boolean success = HttpResponseStatus.OK.equals(HttpResponseStatus.parseLine(headers.status()));
+
+            final RejectionReason reason = ErrorResponseParser.parseReason(body);
+            final long timestamp = ErrorResponseParser.parseTimestamp(body);
+
+            final APNSNotificationResponse response = new APNSNotificationResponse(request.getNotification(), success, reason,
+                    reason == RejectionReason.UNKNOWN ? ErrorResponseParser.parseReasonText(body) : reason != null ? reason.getText() : null,
+                    timestamp >= 0 ? new Date(timestamp) : null);
+
+            if (APNSClientHandler.this.authenticationTokenProvider != null && reason == RejectionReason.EXPIRED_PROVIDER_TOKEN) {
+                try {
+                    APNSClientHandler.this.authenticationTokenProvider.handleExpiredToken();
+                } catch (final GeneralSecurityException e) {
+                    log.error("Failed to sign a new provider token.", e);
+                }
+            }
+
+            if (APNSClientHandler.this.onDataReceived != null) {
+                APNSClientHandler.this.onDataReceived.received(response);
+            }
+
+            if (APNSClientHandler.this.apnsClient != null) {
+                APNSClientHandler.this.apnsClient.handlePushNotificationResponse(request, response);
+            }
+        }
+
         @Override
         public void onHeadersRead(final ChannelHandlerContext context, final int streamId, final Http2Headers headers, final int streamDependency, final short weight, final boolean exclusive, final int padding, final boolean endOfStream) throws Http2Exception {
             this.onHeadersRead(context, streamId, headers, padding, endOfStream);
@@ -183,10 +443,14 @@ public class APNSClientHandler extends Http2ConnectionHandler {
                     log.error("Gateway sent an end-of-stream HEADERS frame for an unsuccessful notification.");
                 }
 
-                final APNSNotification pushNotification = APNSClientHandler.this.pushNotificationsByStreamId.remove(streamId);
+                APNSClientHandler.this.completeLatencySample(context, streamId);
 
-                /*APNSClientHandler.this.apnsClient.handlePushNotificationResponse(new APNSNotificationResponse(
-                        pushNotification, success, null, null));*/
+                final APNSNotificationRequest request = APNSClientHandler.this.removeRequest(streamId);
+
+                if (request != null && APNSClientHandler.this.apnsClient != null) {
+                    APNSClientHandler.this.apnsClient.handlePushNotificationResponse(request, new APNSNotificationResponse(
+                            request.getNotification(), success, null, null));
+                }
 
             } else {
                 APNSClientHandler.this.headersByStreamId.put(streamId, headers);
@@ -203,75 +467,444 @@ public class APNSClientHandler extends Http2ConnectionHandler {
             }
         }
 
+        @Override
+        public void onRstStreamRead(final ChannelHandlerContext context, final int streamId, final long errorCode) throws Http2Exception {
+            log.warn("Stream {} was reset by APNs gateway with code {}.", streamId, errorCode);
+
+            if (streamId == APNSClientHandler.this.latencySampleStreamId) {
+                APNSClientHandler.this.latencySampleStreamId = -1;
+            }
+
+            APNSClientHandler.this.headersByStreamId.remove(streamId);
+            final APNSNotificationRequest request = APNSClientHandler.this.removeRequest(streamId);
+            final ByteBuf partialBody = APNSClientHandler.this.partialBodiesByStreamId.remove(streamId);
+
+            if (partialBody != null) {
+                partialBody.release();
+            }
+
+            if (request != null && APNSClientHandler.this.apnsClient != null) {
+                APNSClientHandler.this.apnsClient.handleUnansweredNotifications(Collections.singletonList(request), STREAM_RESET_EXCEPTION);
+            }
+        }
+
         @Override
         public void onGoAwayRead(final ChannelHandlerContext context, final int lastStreamId, final long errorCode, final ByteBuf debugData) throws Http2Exception {
             log.info("code: {} Received GOAWAY from APNs server: {}", errorCode, debugData.toString(StandardCharsets.UTF_8));
+
+            // Streams above lastStreamId were never processed by the gateway and will not be answered; streams up to
+            // it stay in the maps and are answered while the connection drains
+            final List<APNSNotificationRequest> unprocessedRequests = new ArrayList<>();
+
+            APNSClientHandler.this.requestsByStreamId.removeAbove(lastStreamId, unprocessedRequests);
+            APNSClientHandler.this.headersByStreamId.removeAbove(lastStreamId, null);
+
+            final List<ScheduledFuture<?>> responseTimeouts = new ArrayList<>();
+            APNSClientHandler.this.responseTimeoutsByStreamId.removeAbove(lastStreamId, responseTimeouts);
+
+            for (final ScheduledFuture<?> responseTimeout : responseTimeouts) {
+                responseTimeout.cancel(false);
+            }
+
+            if (APNSClientHandler.this.latencySampleStreamId > lastStreamId) {
+                APNSClientHandler.this.latencySampleStreamId = -1;
+            }
+
+            if (APNSClientHandler.this.apnsClient != null) {
+                APNSClientHandler.this.apnsClient.handleGoAway(context.channel(), unprocessedRequests);
+                APNSClientHandler.this.migratePendingNotifications(context.channel());
+            }
         }
     }
 
     @Override
     public void write(final ChannelHandlerContext context, final Object message, final ChannelPromise writePromise) throws Http2Exception {
         try {
-            // We'll catch class cast issues gracefully
-            final APNSNotification pushNotification = (APNSNotification) message;
+            // We'll catch class cast issues gracefully; bare notifications are written without a response promise
+            final APNSNotificationRequest request = message instanceof APNSNotificationRequest ?
+                    (APNSNotificationRequest) message : new APNSNotificationRequest((APNSNotification) message, null);
+
+            if (this.mustMigrate()) {
+                // This connection cannot open another stream, either because the gateway no longer accepts them or
+                // because the stream IDs are used up, so hand the notification to the connection replacing it
+                this.apnsClient.migrate(context.channel(), request, writePromise);
+            } else if (this.canWriteWithoutQueueing(request.getNotification())) {
+                this.writeNotification(context, request, writePromise);
+            } else {
+                this.enqueue(request, writePromise);
+            }
+        } catch (final ClassCastException e) {
+            // This should never happen, but in case some foreign debris winds up in the pipeline, just pass it through.
+            log.error("Unexpected object in pipeline: {}", message);
+            context.write(message, writePromise);
+        }
+    }
 
-            final int streamId = (int) this.nextStreamId;
+    private boolean mustMigrate() {
+        return this.apnsClient != null && (this.retired || this.connection().goAwayReceived() || this.nextStreamId >= Constant.STREAM_ID_RESET_THRESHOLD);
+    }
 
-            final Http2Headers headers = new DefaultHttp2Headers()
-                    .method(HttpMethod.POST.asciiName())
-                    .authority(this.authority)
-                    .path(Constant.APNS_PATH_PREFIX + pushNotification.getToken())
-                    .addInt(Constant.APNS_EXPIRATION_HEADER, pushNotification.getInvalidationTime() == null ? 0 : (int) (pushNotification.getInvalidationTime().getTime() / 1000));
+    private static boolean isImmediate(final APNSNotification pushNotification) {
+        // APNs delivers notifications without a priority immediately
+        return pushNotification.getPriority() != DeliveryPriority.CONSERVE_POWER;
+    }
 
-            if (pushNotification.getPriority() != null) {
-                headers.addInt(Constant.APNS_PRIORITY_HEADER, pushNotification.getPriority().getCode());
-            }
+    /**
+     * An immediate notification may take any free stream as long as no other immediate notification is waiting. A
+     * power-conserving one only gets a stream if nothing is waiting at all and the streams reserved for immediate
+     * notifications stay free.
+     */
+    private boolean canWriteWithoutQueueing(final APNSNotification pushNotification) {
+        if (isImmediate(pushNotification)) {
+            return this.immediateWrites.isEmpty() && this.connection().local().canOpenStream();
+        }
+
+        return this.immediateWrites.isEmpty() && this.conservePowerWrites.isEmpty() && this.canOpenConservePowerStream();
+    }
+
+    private boolean canOpenConservePowerStream() {
+        final Http2Connection.Endpoint<Http2LocalFlowController> local = this.connection().local();
+        final int reservedStreams = local.maxActiveStreams() > 1 ?
+                Math.max(1, local.maxActiveStreams() / Constant.IMMEDIATE_STREAM_RESERVE_DIVISOR) : 0;
 
-            if (pushNotification.getTopic() != null) {
-                headers.add(Constant.APNS_TOPIC_HEADER, pushNotification.getTopic());
+        return local.numActiveStreams() < local.maxActiveStreams() - reservedStreams;
+    }
+
+    /**
+     * Queues a notification until a stream becomes free. If the queue is full, the pending queue policy decides which
+     * notification fails; {@link PendingQueuePolicy#BLOCK} is enforced by the sending threads, so the queue only grows
+     * beyond its capacity here for writes that were not throttled, such as those of a batch.
+     */
+    private void enqueue(final APNSNotificationRequest request, final ChannelPromise writePromise) {
+        final boolean immediate = isImmediate(request.getNotification());
+
+        if (this.pendingQueueDepth >= this.maxPendingNotifications && this.pendingQueuePolicy != PendingQueuePolicy.BLOCK) {
+            final PendingWrite droppedWrite = this.pendingQueuePolicy == PendingQueuePolicy.DROP_LOWEST_PRIORITY && immediate ?
+                    this.conservePowerWrites.pollLast() : null;
+
+            if (droppedWrite == null) {
+                log.debug("Pending queue is full; failing notification {}.", request);
+                writePromise.tryFailure(PENDING_QUEUE_FULL_EXCEPTION);
+                return;
             }
 
-            final ChannelPromise headersPromise = context.newPromise();
-            this.encoder().writeHeaders(context, streamId, headers, 0, false, headersPromise);
-            log.trace("Wrote headers on stream {}: {}", streamId, headers);
+            log.debug("Pending queue is full; dropping notification {}.", droppedWrite.request);
+            droppedWrite.promise.tryFailure(PENDING_QUEUE_FULL_EXCEPTION);
+        }
 
-            final ByteBuf payloadBuffer = context.alloc().ioBuffer(Constant.INITIAL_PAYLOAD_BUFFER_CAPACITY);
-            payloadBuffer.writeBytes(pushNotification.getPayload().getBytes(StandardCharsets.UTF_8));
+        (immediate ? this.immediateWrites : this.conservePowerWrites).add(new PendingWrite(request, writePromise));
+        this.pendingQueueDepth = this.immediateWrites.size() + this.conservePowerWrites.size();
+    }
 
-            final ChannelPromise dataPromise = context.newPromise();
-            this.encoder().writeData(context, streamId, payloadBuffer, 0, true, dataPromise);
-            log.trace("Wrote payload on stream {}: {}", streamId, pushNotification.getPayload());
+    /**
+     * Writes queued notifications for as long as the gateway's concurrent stream limit allows. Immediate
+     * notifications take precedence: while both kinds are waiting, {@link Constant#IMMEDIATE_SCHEDULING_WEIGHT}
+     * immediate notifications are written for every power-conserving one, and power-conserving notifications never
+     * take the streams reserved for immediate ones.
+     */
+    private void writePendingNotifications(final ChannelHandlerContext context) throws Http2Exception {
+        while (!this.immediateWrites.isEmpty() || !this.conservePowerWrites.isEmpty()) {
+            if (this.mustMigrate()) {
+                this.migratePendingNotifications(context.channel());
+                break;
+            }
 
-            final PromiseCombiner promiseCombiner = new PromiseCombiner();
-            promiseCombiner.addAll(headersPromise, dataPromise);
-            promiseCombiner.finish(writePromise);
+            if (!this.connection().local().canOpenStream()) {
+                break;
+            }
 
-            if (writePromise.isDone()) {
-                notifyWriteDone(writePromise, streamId, pushNotification);
+            final boolean conservePowerWriteAllowed = !this.conservePowerWrites.isEmpty() && this.canOpenConservePowerStream();
+            final PendingWrite pendingWrite;
+
+            if (!this.immediateWrites.isEmpty() && (!conservePowerWriteAllowed || this.immediateWriteCredits > 0)) {
+                pendingWrite = this.immediateWrites.poll();
+
+                if (conservePowerWriteAllowed) {
+                    this.immediateWriteCredits--;
+                }
+            } else if (conservePowerWriteAllowed) {
+                pendingWrite = this.conservePowerWrites.poll();
+                this.immediateWriteCredits = Constant.IMMEDIATE_SCHEDULING_WEIGHT;
             } else {
-                writePromise.addListener(new GenericFutureListener<ChannelPromise>() {
-                    @Override
-                    public void operationComplete(final ChannelPromise future) throws Exception {
-                        notifyWriteDone(writePromise, streamId, pushNotification);
-                    }
-                });
+                break;
             }
 
-            this.nextStreamId += 2;
+            this.writeNotification(context, pendingWrite.request, pendingWrite.promise);
+        }
 
-            if (++this.unflushedNotifications >= this.maxUnflushedNotifications) {
-                this.flush(context);
+        this.pendingQueueDepth = this.immediateWrites.size() + this.conservePowerWrites.size();
+    }
+
+    private void migratePendingNotifications(final Channel channel) {
+        for (final PendingWrite pendingWrite : this.immediateWrites) {
+            this.apnsClient.migrate(channel, pendingWrite.request, pendingWrite.promise);
+        }
+
+        for (final PendingWrite pendingWrite : this.conservePowerWrites) {
+            this.apnsClient.migrate(channel, pendingWrite.request, pendingWrite.promise);
+        }
+
+        this.immediateWrites.clear();
+        this.conservePowerWrites.clear();
+        this.pendingQueueDepth = 0;
+    }
+
+    /**
+     * Marks this connection as replaced: the notifications waiting for a stream, and any written to it from now on,
+     * are moved to the connection that replaced it, while the streams already open are left to be answered. Must be
+     * called on the channel's event loop before the channel is closed.
+     */
+    public void retire(final Channel channel) {
+        this.retired = true;
+
+        if (this.apnsClient != null) {
+            this.migratePendingNotifications(channel);
+        }
+    }
+
+    public long getNotificationsWritten() {
+        return this.notificationsWritten;
+    }
+
+    /**
+     * Returns the settings the gateway has sent so far, e.g. its concurrent stream limit and HPACK table size.
+     */
+    public Http2Settings getRemoteSettings() {
+        return this.remoteSettings;
+    }
+
+    /**
+     * Returns the size of the HPACK-encoded header blocks relative to the plain size of the headers they encode.
+     */
+    public double getHeaderCompressionRatio() {
+        if (this.headersEncoder == null) {
+            return 0;
+        }
+
+        final long plainHeaderBytes = this.headersEncoder.getPlainHeaderBytes();
+        return plainHeaderBytes == 0 ? 0 : (double) this.headersEncoder.getEncodedHeaderBytes() / plainHeaderBytes;
+    }
+
+    /**
+     * Returns the average number of HPACK-encoded header bytes written per notification.
+     */
+    public double getHeaderBytesPerNotification() {
+        final long notificationsWritten = this.notificationsWritten;
+        return this.headersEncoder == null || notificationsWritten == 0 ? 0 : (double) this.headersEncoder.getEncodedHeaderBytes() / notificationsWritten;
+    }
+
+    /**
+     * Returns the number of notifications waiting for a free stream.
+     */
+    public int getPendingQueueDepth() {
+        return this.pendingQueueDepth;
+    }
+
+    private void writeNotification(final ChannelHandlerContext context, final APNSNotificationRequest request, final ChannelPromise writePromise) throws Http2Exception {
+        final APNSNotification pushNotification = request.getNotification();
+        final int streamId = (int) this.nextStreamId;
+
+        // Headers that repeat across notifications come first and the per-notification path and expiration last;
+        // the latter are never indexed (see APNS_SENSITIVITY_DETECTOR)
+        final Http2Headers headers = new DefaultHttp2Headers(false, 8)
+                .add(this.getHeaderTemplate(pushNotification.getTopic(), pushNotification.getPriority()));
+
+        if (this.authenticationTokenProvider != null) {
+            try {
+                headers.add(Constant.APNS_AUTHORIZATION_HEADER, this.authenticationTokenProvider.getAuthorizationHeader());
+            } catch (final GeneralSecurityException e) {
+                log.error("Failed to sign a provider token.", e);
+                writePromise.tryFailure(e);
+                return;
             }
+        }
+
+        headers.path(pushNotification.getDeviceToken() != null ?
+                asciiPath(pushNotification.getDeviceToken()) : asciiPath(pushNotification.getToken()));
+        headers.add(Constant.APNS_EXPIRATION_HEADER, pushNotification.getInvalidationTime() == null ?
+                ASCII_ZERO : asciiNumber(pushNotification.getInvalidationTime().getTime() / 1000));
+
+        final ChannelPromise headersPromise = context.newPromise();
+        this.encoder().writeHeaders(context, streamId, headers, 0, false, headersPromise);
+        log.trace("Wrote headers on stream {}: {}", streamId, headers);
+
+        final Http2Stream stream = this.connection().stream(streamId);
+
+        if (stream != null) {
+            // The weight only steers how our flow controller shares the connection window between streams, so that
+            // immediate notifications get their DATA frames out first while a campaign is being written
+            stream.setPriority(0, isImmediate(pushNotification) ?
+                    Constant.IMMEDIATE_STREAM_WEIGHT : Constant.CONSERVE_POWER_STREAM_WEIGHT, false);
+        }
+
+        final ByteBuf payloadBuffer;
+
+        if (pushNotification.getPayloadBuffer() != null) {
+            // The DATA frame releases what it writes, while the notification keeps its buffer for a resend
+            payloadBuffer = pushNotification.getPayloadBuffer().retainedDuplicate();
+        } else {
+            final String payload = pushNotification.getPayload();
+            final int payloadLength = utf8Length(payload);
+
+            payloadBuffer = context.alloc().ioBuffer(payloadLength);
+
+            // ByteBufUtil.writeUtf8 would grow the buffer to three bytes per char first, so only ASCII is written
+            // in place
+            if (payloadLength == payload.length()) {
+                ByteBufUtil.writeAscii(payloadBuffer, payload);
+            } else {
+                payloadBuffer.writeBytes(payload.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        final ChannelPromise dataPromise = context.newPromise();
+        log.trace("Writing {} payload bytes on stream {}.", payloadBuffer.readableBytes(), streamId);
+        this.encoder().writeData(context, streamId, payloadBuffer, 0, true, dataPromise);
+
+        final PromiseCombiner promiseCombiner = new PromiseCombiner();
+        promiseCombiner.addAll(headersPromise, dataPromise);
+        promiseCombiner.finish(writePromise);
+
+        if (writePromise.isDone()) {
+            notifyWriteDone(writePromise, streamId, request);
+        } else {
+            writePromise.addListener(new GenericFutureListener<ChannelPromise>() {
+                @Override
+                public void operationComplete(final ChannelPromise future) throws Exception {
+                    notifyWriteDone(writePromise, streamId, request);
+                }
+            });
+        }
 
+        this.nextStreamId += 2;
+
+        if (this.unflushedNotifications++ == 0) {
+            this.firstUnflushedWriteNanos = System.nanoTime();
+        }
+
+        if (this.unflushedNotifications >= this.flushBatchSize) {
+            this.flush(context);
+        } else if (!this.flushScheduled) {
+            this.flushScheduled = true;
+            context.channel().eventLoop().execute(this.flushTask);
+        }
+
+        if (this.apnsClient == null) {
             if (this.nextStreamId >= Constant.STREAM_ID_RESET_THRESHOLD) {
                 context.close();
             }
+        } else if (this.nextStreamId >= Constant.STREAM_ID_ROTATION_THRESHOLD && !this.rotationRequested) {
+            // Open the successor while there are still stream IDs left for the writes that arrive until it is
+            // ready; this connection is closed gracefully once it has been replaced
+            log.info("Stream IDs on {} are running out; replacing the connection.", context.channel().remoteAddress());
 
-        } catch (final ClassCastException e) {
-            // This should never happen, but in case some foreign debris winds up in the pipeline, just pass it through.
-            log.error("Unexpected object in pipeline: {}", message);
-            context.write(message, writePromise);
+            this.rotationRequested = true;
+            this.apnsClient.replace(context.channel());
+        }
+    }
+
+    /**
+     * Returns the validated headers shared by every notification with the given topic and priority. Only the path,
+     * the expiration and the authorization token differ between such notifications.
+     */
+    private Http2Headers getHeaderTemplate(final String topic, final DeliveryPriority priority) {
+        Http2Headers[] templatesByPriority = this.headerTemplatesByTopic.get(topic);
+
+        if (templatesByPriority == null) {
+            templatesByPriority = new Http2Headers[DeliveryPriority.values().length + 1];
+            this.headerTemplatesByTopic.put(topic, templatesByPriority);
+        }
+
+        final int index = priority == null ? 0 : priority.ordinal() + 1;
+
+        if (templatesByPriority[index] == null) {
+            final Http2Headers template = new DefaultHttp2Headers()
+                    .method(HttpMethod.POST.asciiName())
+                    .authority(new AsciiString(this.authority));
+
+            if (priority != null) {
+                template.add(Constant.APNS_PRIORITY_HEADER, asciiNumber(priority.getCode()));
+            }
+
+            if (topic != null) {
+                template.add(Constant.APNS_TOPIC_HEADER, new AsciiString(topic));
+            }
+
+            templatesByPriority[index] = template;
+        }
+
+        return templatesByPriority[index];
+    }
+
+    /**
+     * Builds the request path from the pre-encoded path prefix and the device token without an intermediate String.
+     */
+    private static AsciiString asciiPath(final DeviceToken token) {
+        final byte[] path = new byte[APNS_PATH_PREFIX.length() + token.hexLength()];
+
+        APNS_PATH_PREFIX.copy(0, path, 0, APNS_PATH_PREFIX.length());
+        token.writeHex(path, APNS_PATH_PREFIX.length());
+
+        return new AsciiString(path, false);
+    }
+
+    private static AsciiString asciiPath(final String token) {
+        final byte[] path = new byte[APNS_PATH_PREFIX.length() + token.length()];
+
+        APNS_PATH_PREFIX.copy(0, path, 0, APNS_PATH_PREFIX.length());
+
+        for (int i = 0; i < token.length(); i++) {
+            path[APNS_PATH_PREFIX.length() + i] = (byte) token.charAt(i);
+        }
+
+        return new AsciiString(path, false);
+    }
+
+    /**
+     * Returns the number of bytes the UTF-8 encoding of the given string takes, so that its buffer can be allocated
+     * at exactly that size.
+     */
+    private static int utf8Length(final String string) {
+        int length = string.length();
+
+        for (int i = 0; i < string.length(); i++) {
+            final char c = string.charAt(i);
+
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    length += 1;
+                } else if (Character.isHighSurrogate(c) && i + 1 < string.length() && Character.isLowSurrogate(string.charAt(i + 1))) {
+                    // Four bytes for the pair of chars
+                    length += 2;
+                    i++;
+                } else {
+                    length += 2;
+                }
+            }
+        }
+
+        return length;
+    }
+
+    private static AsciiString asciiNumber(long value) {
+        if (value == 0) {
+            return ASCII_ZERO;
         }
+
+        final boolean negative = value < 0;
+        final byte[] digits = new byte[20];
+        int position = digits.length;
+
+        do {
+            digits[--position] = (byte) ('0' + Math.abs(value % 10));
+            value /= 10;
+        } while (value != 0);
+
+        if (negative) {
+            digits[--position] = '-';
+        }
+
+        return new AsciiString(digits, position, digits.length - position, false);
     }
 
     @Override
@@ -279,12 +912,7 @@ public class APNSClientHandler extends Http2ConnectionHandler {
         if (event instanceof IdleStateEvent) {
             final IdleStateEvent idleStateEvent = (IdleStateEvent) event;
 
-            if (IdleState.WRITER_IDLE.equals(idleStateEvent.state())) {
-                if (this.unflushedNotifications > 0) {
-                    this.flush(context);
-                }
-            } else {
-
+            if (IdleState.ALL_IDLE.equals(idleStateEvent.state())) {
                 log.trace("Sending ping due to inactivity.");
 
                 final ByteBuf pingDataBuffer = context.alloc().ioBuffer(8, 8);
@@ -317,6 +945,154 @@ public class APNSClientHandler extends Http2ConnectionHandler {
         super.userEventTriggered(context, event);
     }
 
+    @Override
+    public void handlerAdded(final ChannelHandlerContext context) throws Exception {
+        this.initialSettingsPromise = context.newPromise();
+
+        this.flushTask = new Runnable() {
+
+            @Override
+            public void run() {
+                APNSClientHandler.this.flushScheduled = false;
+
+                if (APNSClientHandler.this.unflushedNotifications == 0) {
+                    return;
+                }
+
+                // Writes submitted from other threads are queued behind this task; let them join the batch unless the
+                // first write has already waited for the latency target
+                if (hasPendingTasks(context.channel().eventLoop()) &&
+                        System.nanoTime() - APNSClientHandler.this.firstUnflushedWriteNanos < APNSClientHandler.this.flushLatencyTargetNanos) {
+
+                    APNSClientHandler.this.flushScheduled = true;
+                    context.channel().eventLoop().execute(this);
+                } else {
+                    try {
+                        APNSClientHandler.this.flush(context);
+                    } catch (final Http2Exception e) {
+                        APNSClientHandler.this.onError(context, e);
+                    }
+                }
+            }
+        };
+
+        this.connection().addListener(new Http2ConnectionAdapter() {
+
+            @Override
+            public void onStreamClosed(final Http2Stream stream) {
+                if (context.channel().isActive()) {
+                    try {
+                        APNSClientHandler.this.writePendingNotifications(context);
+                    } catch (final Http2Exception e) {
+                        APNSClientHandler.this.onError(context, e);
+                    }
+                }
+            }
+        });
+
+        super.handlerAdded(context);
+    }
+
+    /**
+     * Returns a future that succeeds once the first SETTINGS frame from the gateway has been read, i.e. once the
+     * HTTP/2 connection preface is complete. Only available after the handler has been added to a pipeline.
+     */
+    public ChannelFuture initialSettingsFuture() {
+        return this.initialSettingsPromise;
+    }
+
+    @Override
+    public void flush(final ChannelHandlerContext context) throws Http2Exception {
+        if (this.unflushedNotifications > 0) {
+            if (this.adaptiveFlush) {
+                this.adjustFlushBatchSize(System.nanoTime() - this.firstUnflushedWriteNanos);
+            }
+
+            this.unflushedNotifications = 0;
+        }
+
+        super.flush(context);
+    }
+
+    /**
+     * Halves the batch size if the first write of the batch waited longer than the latency target, and grows it if a
+     * full batch was collected well within the target, which means writes are arriving faster than they are flushed.
+     */
+    private void adjustFlushBatchSize(final long waitNanos) {
+        final int batchSize = this.flushBatchSize;
+
+        if (waitNanos > this.flushLatencyTargetNanos) {
+            this.flushBatchSize = Math.max(1, batchSize / 2);
+        } else if (this.unflushedNotifications >= batchSize && waitNanos < this.flushLatencyTargetNanos / 2) {
+            this.flushBatchSize = Math.min(Constant.MAX_FLUSH_BATCH_SIZE, batchSize + Math.max(1, batchSize / 4));
+        }
+    }
+
+    private static boolean hasPendingTasks(final EventLoop eventLoop) {
+        return eventLoop instanceof SingleThreadEventExecutor && ((SingleThreadEventExecutor) eventLoop).pendingTasks() > 0;
+    }
+
+    /**
+     * Returns the number of written notifications after which the connection is flushed even though more writes are
+     * queued. Fixed unless adaptive flushing is enabled.
+     */
+    public int getFlushBatchSize() {
+        return this.flushBatchSize;
+    }
+
+    @Override
+    public void channelInactive(final ChannelHandlerContext context) throws Exception {
+        this.initialSettingsPromise.tryFailure(new IllegalStateException("Channel closed before the gateway sent its settings."));
+
+        if (this.apnsClient != null && !this.requestsByStreamId.isEmpty()) {
+            final List<APNSNotificationRequest> unansweredRequests = new ArrayList<>(this.requestsByStreamId.size());
+            this.requestsByStreamId.addValuesTo(unansweredRequests);
+
+            this.apnsClient.handleUnansweredNotifications(unansweredRequests, CHANNEL_CLOSED_EXCEPTION);
+        }
+
+        this.requestsByStreamId.clear();
+        this.headersByStreamId.clear();
+
+        if (!this.responseTimeoutsByStreamId.isEmpty()) {
+            final List<ScheduledFuture<?>> responseTimeouts = new ArrayList<>(this.responseTimeoutsByStreamId.size());
+            this.responseTimeoutsByStreamId.addValuesTo(responseTimeouts);
+
+            for (final ScheduledFuture<?> responseTimeout : responseTimeouts) {
+                responseTimeout.cancel(false);
+            }
+
+            this.responseTimeoutsByStreamId.clear();
+        }
+
+        if (!this.partialBodiesByStreamId.isEmpty()) {
+            final List<ByteBuf> partialBodies = new ArrayList<>(this.partialBodiesByStreamId.size());
+            this.partialBodiesByStreamId.addValuesTo(partialBodies);
+
+            for (final ByteBuf partialBody : partialBodies) {
+                partialBody.release();
+            }
+
+            this.partialBodiesByStreamId.clear();
+        }
+
+        final IllegalStateException channelClosedException = new IllegalStateException("Channel closed before the notification could be written.");
+
+        for (final PendingWrite pendingWrite : this.immediateWrites) {
+            pendingWrite.promise.tryFailure(channelClosedException);
+        }
+
+        for (final PendingWrite pendingWrite : this.conservePowerWrites) {
+            pendingWrite.promise.tryFailure(channelClosedException);
+        }
+
+        this.immediateWrites.clear();
+        this.conservePowerWrites.clear();
+        this.pendingQueueDepth = 0;
+
+        super.channelInactive(context);
+    }
+
     @Override
     public void exceptionCaught(final ChannelHandlerContext context, final Throwable cause) throws Exception {
         if (cause instanceof WriteTimeoutException) {
@@ -327,42 +1103,102 @@ public class APNSClientHandler extends Http2ConnectionHandler {
         }
     }
 
-    private void notifyWriteDone(final ChannelFuture future, final int streamId, final APNSNotification pushNotification) {
-        if (future.isSuccess()) {
-            this.pushNotificationsByStreamId.put(streamId, pushNotification);
-        } else {
-            log.trace("Failed to write push notification on stream {}.", streamId, future.cause());
+    private void completeLatencySample(final ChannelHandlerContext context, final int streamId) {
+        if (streamId == this.latencySampleStreamId) {
+            this.latencySampleStreamId = -1;
+
+            if (this.inetAddressPool != null) {
+                this.inetAddressPool.reportLatency(((InetSocketAddress) context.channel().remoteAddress()).getAddress(),
+                        System.nanoTime() - this.latencySampleStartNanos);
+            }
         }
     }
 
-    private static class DateAsMillisecondsSinceEpochTypeAdapter implements JsonSerializer<Date>, JsonDeserializer<Date> {
+    /**
+     * Forgets the notification written on the given stream, which has been answered or will not be, and cancels its
+     * response timeout.
+     */
+    private APNSNotificationRequest removeRequest(final int streamId) {
+        final ScheduledFuture<?> responseTimeout = this.responseTimeoutsByStreamId.remove(streamId);
 
-        @Override
-        public Date deserialize(final JsonElement json, final Type typeOfT, final JsonDeserializationContext context) throws JsonParseException {
-            final Date date;
+        if (responseTimeout != null) {
+            responseTimeout.cancel(false);
+        }
 
-            if (json.isJsonPrimitive()) {
-                date = new Date(json.getAsLong());
-            } else if (json.isJsonNull()) {
-                date = null;
-            } else {
-                throw new JsonParseException("Dates represented as seconds since the epoch must either be numbers or null.");
-            }
+        return this.requestsByStreamId.remove(streamId);
+    }
+
+    private void handleResponseTimeout(final ChannelHandlerContext context, final int streamId) {
+        this.responseTimeoutsByStreamId.remove(streamId);
+
+        final APNSNotificationRequest request = this.requestsByStreamId.remove(streamId);
 
-            return date;
+        if (request == null) {
+            return;
         }
 
-        @Override
-        public JsonElement serialize(final Date src, final Type typeOfSrc, final JsonSerializationContext context) {
-            final JsonElement element;
+        log.debug("Gateway did not answer stream {} in time; resetting it.", streamId);
 
-            if (src != null) {
-                element = new JsonPrimitive(src.getTime());
-            } else {
-                element = JsonNull.INSTANCE;
+        if (streamId == this.latencySampleStreamId) {
+            this.latencySampleStreamId = -1;
+        }
+
+        this.headersByStreamId.remove(streamId);
+
+        final ByteBuf partialBody = this.partialBodiesByStreamId.remove(streamId);
+
+        if (partialBody != null) {
+            partialBody.release();
+        }
+
+        this.resetStream(context, streamId, Http2Error.CANCEL.code(), context.newPromise());
+        context.flush();
+
+        if (this.apnsClient != null) {
+            this.apnsClient.handleUnansweredNotifications(Collections.singletonList(request), RESPONSE_TIMEOUT_EXCEPTION);
+        }
+    }
+
+    private void notifyWriteDone(final ChannelFuture future, final int streamId, final APNSNotificationRequest request) {
+        if (future.isSuccess()) {
+            if (this.apnsClient != null && this.connection().goAwayReceived()
+                    && streamId > this.connection().local().lastStreamKnownByPeer()) {
+                // The write was still buffered when GOAWAY arrived and the gateway will never answer it
+                this.apnsClient.handleGoAway(future.channel(), Collections.singletonList(request));
+                return;
+            }
+
+            this.requestsByStreamId.put(streamId, request);
+            this.notificationsWritten++;
+
+            if (this.responseTimeoutNanos > 0) {
+                final ChannelHandlerContext context = future.channel().pipeline().context(this);
+
+                this.responseTimeoutsByStreamId.put(streamId, future.channel().eventLoop().schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        APNSClientHandler.this.handleResponseTimeout(context, streamId);
+                    }
+                }, this.responseTimeoutNanos, TimeUnit.NANOSECONDS));
+            }
+
+            if (this.latencySampleStreamId < 0) {
+                this.latencySampleStreamId = streamId;
+                this.latencySampleStartNanos = System.nanoTime();
             }
+        } else {
+            log.trace("Failed to write push notification on stream {}.", streamId, future.cause());
+        }
+    }
+
+    private static class PendingWrite {
+        private final APNSNotificationRequest request;
+        private final ChannelPromise promise;
 
-            return element;
+        private PendingWrite(final APNSNotificationRequest request, final ChannelPromise promise) {
+            this.request = request;
+            this.promise = promise;
         }
     }
 }
@@ -1,5 +1,9 @@
 package cn.claresun.cpush.handler;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
 
 /**
@@ -7,7 +11,9 @@ import java.util.Date;
  */
 public class APNSNotification {
     private final String token;
+    private final DeviceToken deviceToken;
     private final String payload;
+    private final ByteBuf payloadBuffer;
     private final Date invalidationTime;
     private final DeliveryPriority priority;
     private final String topic;
@@ -21,21 +27,93 @@ public class APNSNotification {
     }
 
     public APNSNotification(String token, String topic, String payload, Date invalidationTime, DeliveryPriority priority) {
+        this(token, null, topic, payload, null, invalidationTime, priority);
+    }
+
+    public APNSNotification(final String token, final String topic, final byte[] payload) {
+        this(token, topic, payload, null, DeliveryPriority.IMMEDIATE);
+    }
+
+    /**
+     * Creates a notification whose payload is already UTF-8 encoded. The array is written to the gateway as it is,
+     * so it must not be modified after the notification has been sent.
+     */
+    public APNSNotification(final String token, final String topic, final byte[] payload, final Date invalidationTime, final DeliveryPriority priority) {
+        this(token, null, topic, null, Unpooled.wrappedBuffer(payload), invalidationTime, priority);
+    }
+
+    public APNSNotification(final String token, final String topic, final ByteBuf payload) {
+        this(token, topic, payload, null, DeliveryPriority.IMMEDIATE);
+    }
+
+    /**
+     * Creates a notification whose payload is the readable bytes of a buffer holding UTF-8 encoded JSON. Each write
+     * sends a retained duplicate of the buffer, so the notification can be sent again; the caller keeps its own
+     * reference and must not release it before the notification has been answered.
+     */
+    public APNSNotification(final String token, final String topic, final ByteBuf payload, final Date invalidationTime, final DeliveryPriority priority) {
+        this(token, null, topic, null, payload, invalidationTime, priority);
+    }
+
+    public APNSNotification(final DeviceToken token, final String topic, final String payload) {
+        this(token, topic, payload, null, DeliveryPriority.IMMEDIATE);
+    }
+
+    /**
+     * Creates a notification for a token held as raw bytes, which is hex-encoded straight into the request path.
+     */
+    public APNSNotification(final DeviceToken token, final String topic, final String payload, final Date invalidationTime, final DeliveryPriority priority) {
+        this(null, token, topic, payload, null, invalidationTime, priority);
+    }
+
+    public APNSNotification(final DeviceToken token, final String topic, final byte[] payload, final Date invalidationTime, final DeliveryPriority priority) {
+        this(null, token, topic, null, Unpooled.wrappedBuffer(payload), invalidationTime, priority);
+    }
+
+    public APNSNotification(final DeviceToken token, final String topic, final ByteBuf payload, final Date invalidationTime, final DeliveryPriority priority) {
+        this(null, token, topic, null, payload, invalidationTime, priority);
+    }
+
+    private APNSNotification(final String token, final DeviceToken deviceToken, final String topic, final String payload, final ByteBuf payloadBuffer, final Date invalidationTime, final DeliveryPriority priority) {
         this.token = token;
+        this.deviceToken = deviceToken;
         this.payload = payload;
+        this.payloadBuffer = payloadBuffer;
         this.invalidationTime = invalidationTime;
         this.priority = priority;
         this.topic = topic;
     }
 
     public String getToken() {
+        if (this.token == null && this.deviceToken != null) {
+            return this.deviceToken.toString();
+        }
+
         return token;
     }
 
+    /**
+     * Returns the token as raw bytes, or {@code null} if the token was given as a String.
+     */
+    public DeviceToken getDeviceToken() {
+        return deviceToken;
+    }
+
     public String getPayload() {
+        if (this.payload == null && this.payloadBuffer != null) {
+            return this.payloadBuffer.toString(StandardCharsets.UTF_8);
+        }
+
         return payload;
     }
 
+    /**
+     * Returns the pre-encoded payload, or {@code null} if the payload was given as a String.
+     */
+    public ByteBuf getPayloadBuffer() {
+        return payloadBuffer;
+    }
+
     public Date getInvalidationTime() {
         return invalidationTime;
     }
@@ -53,9 +131,11 @@ public class APNSNotification {
         final int prime = 31;
         int result = 1;
         result = prime * result + ((this.invalidationTime == null) ? 0 : this.invalidationTime.hashCode());
-        result = prime * result + ((this.payload == null) ? 0 : this.payload.hashCode());
+        final String payload = this.getPayload();
+        result = prime * result + ((payload == null) ? 0 : payload.hashCode());
         result = prime * result + ((this.priority == null) ? 0 : this.priority.hashCode());
-        result = prime * result + ((this.token == null) ? 0 : this.token.hashCode());
+        final String token = this.getToken();
+        result = prime * result + ((token == null) ? 0 : token.hashCode());
         result = prime * result + ((this.topic == null) ? 0 : this.topic.hashCode());
         return result;
     }
@@ -79,21 +159,23 @@ public class APNSNotification {
         } else if (!this.invalidationTime.equals(other.invalidationTime)) {
             return false;
         }
-        if (this.payload == null) {
-            if (other.payload != null) {
+        final String payload = this.getPayload();
+        if (payload == null) {
+            if (other.getPayload() != null) {
                 return false;
             }
-        } else if (!this.payload.equals(other.payload)) {
+        } else if (!payload.equals(other.getPayload())) {
             return false;
         }
         if (this.priority != other.priority) {
             return false;
         }
-        if (this.token == null) {
-            if (other.token != null) {
+        final String token = this.getToken();
+        if (token == null) {
+            if (other.getToken() != null) {
                 return false;
             }
-        } else if (!this.token.equals(other.token)) {
+        } else if (!token.equals(other.getToken())) {
             return false;
         }
         if (this.topic == null) {
@@ -110,9 +192,9 @@ public class APNSNotification {
     public String toString() {
         final StringBuilder builder = new StringBuilder();
         builder.append("[token=");
-        builder.append(this.token);
+        builder.append(this.getToken());
         builder.append(", payload=");
-        builder.append(this.payload);
+        builder.append(this.getPayload());
         builder.append(", invalidationTime=");
         builder.append(this.invalidationTime);
         builder.append(", priority=");
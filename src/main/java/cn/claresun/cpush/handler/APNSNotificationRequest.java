@@ -0,0 +1,36 @@
+package cn.claresun.cpush.handler;
+
+import cn.claresun.cpush.Result;
+import io.netty.util.concurrent.Promise;
+
+/**
+ * A notification on its way to the gateway, together with the promise its response completes. The promise travels
+ * down the pipeline with the notification and is kept with the notification's stream, so the same notification
+ * instance may be in flight any number of times.
+ */
+public final class APNSNotificationRequest {
+    private final APNSNotification notification;
+    private final Promise<Result> responsePromise;
+
+    /**
+     * @param responsePromise the promise to complete with the gateway's response, or {@code null} if nobody waits
+     * for it
+     */
+    public APNSNotificationRequest(final APNSNotification notification, final Promise<Result> responsePromise) {
+        this.notification = notification;
+        this.responsePromise = responsePromise;
+    }
+
+    public APNSNotification getNotification() {
+        return this.notification;
+    }
+
+    public Promise<Result> getResponsePromise() {
+        return this.responsePromise;
+    }
+
+    @Override
+    public String toString() {
+        return this.notification.toString();
+    }
+}
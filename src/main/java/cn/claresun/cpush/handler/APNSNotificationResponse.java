@@ -1,21 +1,44 @@
 package cn.claresun.cpush.handler;
 
+import cn.claresun.cpush.Result;
+
 import java.util.Date;
 
 /**
  * Created by claresun on 16-8-17.
  */
-public class APNSNotificationResponse {
+public class APNSNotificationResponse extends Result {
     private final APNSNotification notification;
     private final boolean success;
+    private final RejectionReason reason;
     private final String rejectionReason;
     private final Date tokenExpirationTimestamp;
+    private final Throwable cause;
 
     public APNSNotificationResponse(APNSNotification notification, boolean success, String rejectionReason, Date tokenExpirationTimestamp) {
+        this(notification, success, null, rejectionReason, tokenExpirationTimestamp);
+    }
+
+    public APNSNotificationResponse(APNSNotification notification, boolean success, RejectionReason reason, String rejectionReason, Date tokenExpirationTimestamp) {
         this.notification = notification;
         this.success = success;
+        this.reason = reason;
         this.rejectionReason = rejectionReason;
         this.tokenExpirationTimestamp = tokenExpirationTimestamp;
+        this.cause = null;
+    }
+
+    /**
+     * Creates the response of a written notification that the gateway will not answer, e.g. because it timed out or
+     * its connection closed.
+     */
+    public APNSNotificationResponse(APNSNotification notification, Throwable cause) {
+        this.notification = notification;
+        this.success = false;
+        this.reason = null;
+        this.rejectionReason = cause.getMessage();
+        this.tokenExpirationTimestamp = null;
+        this.cause = cause;
     }
 
     public APNSNotification getNotification() {
@@ -42,10 +65,25 @@ public class APNSNotificationResponse {
         return this.rejectionReason;
     }
 
+    /**
+     * Returns the rejection reason as a constant, {@link RejectionReason#UNKNOWN} if APNs gave a reason this version
+     * does not know, or {@code null} if the notification was not rejected.
+     */
+    public RejectionReason getReason() {
+        return this.reason;
+    }
+
     public Date getTokenInvalidationTimestamp() {
         return this.tokenExpirationTimestamp;
     }
 
+    /**
+     * Returns why the notification went unanswered, or {@code null} if this is the gateway's answer.
+     */
+    public Throwable getCause() {
+        return this.cause;
+    }
+
     @Override
     public String toString() {
         final StringBuilder sb = new StringBuilder("APNSNotificationResponse{");
@@ -53,6 +91,11 @@ public class APNSNotificationResponse {
         sb.append(", success=").append(success);
         sb.append(", rejectionReason='").append(rejectionReason).append('\'');
         sb.append(", tokenExpirationTimestamp=").append(tokenExpirationTimestamp);
+
+        if (cause != null) {
+            sb.append(", cause=").append(cause);
+        }
+
         sb.append('}');
         return sb.toString();
     }
@@ -0,0 +1,125 @@
+package cn.claresun.cpush.handler;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A device token held as its raw bytes, half the size of its hex digits and a fraction of the memory of a hex
+ * String. Tokens are parsed from hex once and hex-encoded again only when they are written into a request path.
+ */
+public final class DeviceToken {
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final byte[] bytes;
+
+    private DeviceToken(final byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    public static DeviceToken fromBytes(final byte[] bytes) {
+        if (bytes.length == 0) {
+            throw new IllegalArgumentException("Device token must not be empty.");
+        }
+
+        return new DeviceToken(bytes.clone());
+    }
+
+    /**
+     * Parses a token from its hex digits. Whitespace and angle brackets, as in the {@code <abcd 1234 ...>} form in
+     * which tokens are often printed, are skipped; any other character that is not a hex digit is rejected.
+     *
+     * @throws IllegalArgumentException if the string contains invalid characters or an odd number of hex digits
+     */
+    public static DeviceToken fromHex(final CharSequence hex) {
+        final byte[] buffer = new byte[hex.length() / 2];
+        int length = 0;
+        int highNibble = -1;
+
+        for (int i = 0; i < hex.length(); i++) {
+            final char c = hex.charAt(i);
+            final int nibble = hexValue(c);
+
+            if (nibble < 0) {
+                if (c == '<' || c == '>' || Character.isWhitespace(c)) {
+                    continue;
+                }
+
+                throw new IllegalArgumentException("Invalid character '" + c + "' in device token.");
+            }
+
+            if (highNibble < 0) {
+                highNibble = nibble;
+            } else {
+                buffer[length++] = (byte) ((highNibble << 4) | nibble);
+                highNibble = -1;
+            }
+        }
+
+        if (highNibble >= 0) {
+            throw new IllegalArgumentException("Device token has an odd number of hex digits.");
+        }
+
+        if (length == 0) {
+            throw new IllegalArgumentException("Device token must not be empty.");
+        }
+
+        return new DeviceToken(length == buffer.length ? buffer : Arrays.copyOf(buffer, length));
+    }
+
+    private static int hexValue(final char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+
+        return -1;
+    }
+
+    public byte[] toByteArray() {
+        return this.bytes.clone();
+    }
+
+    /**
+     * Returns the number of hex digits of the token.
+     */
+    public int hexLength() {
+        return this.bytes.length * 2;
+    }
+
+    /**
+     * Writes the token's lowercase hex digits into the given array, starting at the given offset.
+     */
+    public void writeHex(final byte[] destination, int offset) {
+        for (final byte b : this.bytes) {
+            destination[offset++] = HEX_DIGITS[(b >> 4) & 0x0f];
+            destination[offset++] = HEX_DIGITS[b & 0x0f];
+        }
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        return Arrays.equals(this.bytes, ((DeviceToken) o).bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(this.bytes);
+    }
+
+    /**
+     * Returns the token's lowercase hex digits.
+     */
+    @Override
+    public String toString() {
+        final byte[] hex = new byte[this.hexLength()];
+        this.writeHex(hex, 0);
+
+        return new String(hex, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,128 @@
+package cn.claresun.cpush.handler;
+
+import io.netty.buffer.ByteBuf;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the fields of an APNs error response body, {@code {"reason":"...","timestamp":...}}, straight from the
+ * buffer it arrived in. Known reasons are matched byte by byte against {@link RejectionReason}, so a rejection only
+ * allocates if its reason is unknown.
+ */
+final class ErrorResponseParser {
+    private static final byte[] REASON_KEY = "\"reason\"".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TIMESTAMP_KEY = "\"timestamp\"".getBytes(StandardCharsets.US_ASCII);
+
+    private ErrorResponseParser() {
+    }
+
+    /**
+     * Returns the rejection reason of the body, {@link RejectionReason#UNKNOWN} if its text is not a known reason, or
+     * {@code null} if the body has none.
+     */
+    static RejectionReason parseReason(final ByteBuf body) {
+        final int valueIndex = indexOfValue(body, REASON_KEY);
+
+        if (valueIndex < 0 || body.getByte(valueIndex) != '"') {
+            return null;
+        }
+
+        final int endIndex = body.indexOf(valueIndex + 1, body.writerIndex(), (byte) '"');
+
+        if (endIndex < 0) {
+            return null;
+        }
+
+        return RejectionReason.fromAscii(body, valueIndex + 1, endIndex - valueIndex - 1);
+    }
+
+    /**
+     * Decodes the text of the body's rejection reason, or returns {@code null} if the body has none. Only needed for
+     * reasons that {@link #parseReason(ByteBuf)} does not know.
+     */
+    static String parseReasonText(final ByteBuf body) {
+        final int valueIndex = indexOfValue(body, REASON_KEY);
+
+        if (valueIndex < 0 || body.getByte(valueIndex) != '"') {
+            return null;
+        }
+
+        final int endIndex = body.indexOf(valueIndex + 1, body.writerIndex(), (byte) '"');
+
+        return endIndex < 0 ? null : body.toString(valueIndex + 1, endIndex - valueIndex - 1, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the body's timestamp in milliseconds since the epoch, or -1 if the body has none.
+     */
+    static long parseTimestamp(final ByteBuf body) {
+        final int valueIndex = indexOfValue(body, TIMESTAMP_KEY);
+
+        if (valueIndex < 0) {
+            return -1;
+        }
+
+        long timestamp = 0;
+        int digits = 0;
+
+        for (int i = valueIndex; i < body.writerIndex(); i++) {
+            final byte b = body.getByte(i);
+
+            if (b < '0' || b > '9') {
+                break;
+            }
+
+            timestamp = timestamp * 10 + (b - '0');
+            digits++;
+        }
+
+        // "timestamp":null and other non-numeric values count as absent
+        return digits > 0 ? timestamp : -1;
+    }
+
+    /**
+     * Returns the index of the first byte of the value of the given quoted key, or -1 if the key is not present.
+     */
+    private static int indexOfValue(final ByteBuf body, final byte[] quotedKey) {
+        final int lastKeyIndex = body.writerIndex() - quotedKey.length;
+
+        for (int keyIndex = body.readerIndex(); keyIndex <= lastKeyIndex; keyIndex++) {
+            if (!regionMatches(body, keyIndex, quotedKey)) {
+                continue;
+            }
+
+            int index = skipWhitespace(body, keyIndex + quotedKey.length);
+
+            if (index < body.writerIndex() && body.getByte(index) == ':') {
+                index = skipWhitespace(body, index + 1);
+                return index < body.writerIndex() ? index : -1;
+            }
+        }
+
+        return -1;
+    }
+
+    private static boolean regionMatches(final ByteBuf body, final int index, final byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (body.getByte(index + i) != bytes[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int skipWhitespace(final ByteBuf body, int index) {
+        while (index < body.writerIndex()) {
+            final byte b = body.getByte(index);
+
+            if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                break;
+            }
+
+            index++;
+        }
+
+        return index;
+    }
+}
@@ -0,0 +1,52 @@
+package cn.claresun.cpush.handler;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http2.Http2Exception;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2HeadersEncoder;
+
+import java.util.Map;
+
+/**
+ * Counts the bytes of the header blocks an HPACK encoder produces against the plain size of the headers it encodes.
+ */
+class MeasuringHeadersEncoder implements Http2HeadersEncoder {
+    private final Http2HeadersEncoder encoder;
+
+    private volatile long encodedHeaderBytes;
+    private volatile long plainHeaderBytes;
+
+    MeasuringHeadersEncoder(final Http2HeadersEncoder encoder) {
+        this.encoder = encoder;
+    }
+
+    @Override
+    public void encodeHeaders(final Http2Headers headers, final ByteBuf buffer) throws Http2Exception {
+        final int writerIndex = buffer.writerIndex();
+
+        this.encoder.encodeHeaders(headers, buffer);
+
+        long plainHeaderBytes = 0;
+
+        for (final Map.Entry<CharSequence, CharSequence> header : headers) {
+            plainHeaderBytes += header.getKey().length() + header.getValue().length();
+        }
+
+        // Only the event loop encodes, so there is a single writer
+        this.encodedHeaderBytes += buffer.writerIndex() - writerIndex;
+        this.plainHeaderBytes += plainHeaderBytes;
+    }
+
+    @Override
+    public Configuration configuration() {
+        return this.encoder.configuration();
+    }
+
+    long getEncodedHeaderBytes() {
+        return this.encodedHeaderBytes;
+    }
+
+    long getPlainHeaderBytes() {
+        return this.plainHeaderBytes;
+    }
+}
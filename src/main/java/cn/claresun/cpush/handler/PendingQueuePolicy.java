@@ -0,0 +1,23 @@
+package cn.claresun.cpush.handler;
+
+/**
+ * What a connection does with a notification that arrives while the gateway's concurrent stream limit is reached and
+ * the connection's pending queue is full.
+ */
+public enum PendingQueuePolicy {
+    /**
+     * The sending thread waits until the queue has room. Writes from the event loop itself are never blocked.
+     */
+    BLOCK,
+
+    /**
+     * The notification fails immediately with a {@link cn.claresun.cpush.exception.PendingQueueFullException}.
+     */
+    FAIL_FAST,
+
+    /**
+     * An {@link DeliveryPriority#IMMEDIATE} notification replaces the most recently queued
+     * {@link DeliveryPriority#CONSERVE_POWER} one, which fails instead; otherwise the new notification fails.
+     */
+    DROP_LOWEST_PRIORITY
+}
@@ -0,0 +1,81 @@
+package cn.claresun.cpush.handler;
+
+import io.netty.buffer.ByteBuf;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The reasons APNs gives for rejecting a notification, as found in the {@code reason} field of an error response.
+ */
+public enum RejectionReason {
+    PAYLOAD_EMPTY("PayloadEmpty"),
+    PAYLOAD_TOO_LARGE("PayloadTooLarge"),
+    BAD_TOPIC("BadTopic"),
+    TOPIC_DISALLOWED("TopicDisallowed"),
+    BAD_MESSAGE_ID("BadMessageId"),
+    BAD_EXPIRATION_DATE("BadExpirationDate"),
+    BAD_PRIORITY("BadPriority"),
+    MISSING_DEVICE_TOKEN("MissingDeviceToken"),
+    BAD_DEVICE_TOKEN("BadDeviceToken"),
+    DEVICE_TOKEN_NOT_FOR_TOPIC("DeviceTokenNotForTopic"),
+    UNREGISTERED("Unregistered"),
+    DUPLICATE_HEADERS("DuplicateHeaders"),
+    BAD_CERTIFICATE_ENVIRONMENT("BadCertificateEnvironment"),
+    BAD_CERTIFICATE("BadCertificate"),
+    FORBIDDEN("Forbidden"),
+    BAD_PATH("BadPath"),
+    METHOD_NOT_ALLOWED("MethodNotAllowed"),
+    TOO_MANY_REQUESTS("TooManyRequests"),
+    IDLE_TIMEOUT("IdleTimeout"),
+    SHUTDOWN("Shutdown"),
+    INTERNAL_SERVER_ERROR("InternalServerError"),
+    SERVICE_UNAVAILABLE("ServiceUnavailable"),
+    MISSING_TOPIC("MissingTopic"),
+    BAD_COLLAPSE_ID("BadCollapseId"),
+    INVALID_PROVIDER_TOKEN("InvalidProviderToken"),
+    MISSING_PROVIDER_TOKEN("MissingProviderToken"),
+    EXPIRED_PROVIDER_TOKEN("ExpiredProviderToken"),
+    TOO_MANY_PROVIDER_TOKEN_UPDATES("TooManyProviderTokenUpdates"),
+
+    /**
+     * A reason this version does not know; the response still carries its text.
+     */
+    UNKNOWN(null);
+
+    private static final RejectionReason[] KNOWN_REASONS = values();
+
+    private final String text;
+    private final byte[] asciiText;
+
+    private RejectionReason(final String text) {
+        this.text = text;
+        this.asciiText = text != null ? text.getBytes(StandardCharsets.US_ASCII) : null;
+    }
+
+    public String getText() {
+        return this.text;
+    }
+
+    /**
+     * Returns the reason whose text is the given range of the buffer, or {@link #UNKNOWN}, without decoding the range.
+     */
+    public static RejectionReason fromAscii(final ByteBuf buffer, final int index, final int length) {
+        for (final RejectionReason reason : KNOWN_REASONS) {
+            if (reason.asciiText != null && reason.asciiText.length == length && reason.matches(buffer, index)) {
+                return reason;
+            }
+        }
+
+        return UNKNOWN;
+    }
+
+    private boolean matches(final ByteBuf buffer, final int index) {
+        for (int i = 0; i < this.asciiText.length; i++) {
+            if (buffer.getByte(index + i) != this.asciiText[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,199 @@
+package cn.claresun.cpush.handler;
+
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * Per-stream state of a client connection, indexed by stream ID without boxing.
+ *
+ * <p>Client stream IDs are odd and grow by two, and only a bounded window of them is in flight at once, so stream
+ * {@code n} lives in slot {@code (n >>> 1) & mask} of a ring. Once the ring spans the connection's window, lookups are
+ * a single array access and nothing is allocated. A new stream that lands on the slot of one that is still open grows
+ * the ring if it is at least half full; otherwise the old stream, which has outlived the window, moves to a small
+ * overflow map, so a stream that is never answered cannot stretch the ring. Not thread-safe; only the event loop uses
+ * it.</p>
+ */
+final class StreamTable<V> {
+    private int[] streamIds;
+    private Object[] values;
+    private int mask;
+    private int size;
+
+    private final IntObjectMap<V> overflow = new IntObjectHashMap<>();
+
+    StreamTable(final int initialCapacity) {
+        int capacity = 1;
+
+        while (capacity < initialCapacity) {
+            capacity <<= 1;
+        }
+
+        this.streamIds = new int[capacity];
+        this.values = new Object[capacity];
+        this.mask = capacity - 1;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(final int streamId) {
+        final int index = (streamId >>> 1) & this.mask;
+
+        if (this.streamIds[index] == streamId) {
+            return (V) this.values[index];
+        }
+
+        return this.overflow.isEmpty() ? null : this.overflow.get(streamId);
+    }
+
+    @SuppressWarnings("unchecked")
+    V put(final int streamId, final V value) {
+        if (streamId <= 0) {
+            throw new IllegalArgumentException("Stream ID must be positive.");
+        }
+
+        int index = (streamId >>> 1) & this.mask;
+
+        if (this.streamIds[index] == streamId) {
+            final V previousValue = (V) this.values[index];
+            this.values[index] = value;
+            return previousValue;
+        }
+
+        if (!this.overflow.isEmpty() && this.overflow.containsKey(streamId)) {
+            return this.overflow.put(streamId, value);
+        }
+
+        while (this.streamIds[index] != 0) {
+            // An older stream is still open in this slot
+            if ((this.size - this.overflow.size()) * 2 >= this.streamIds.length) {
+                this.grow();
+                index = (streamId >>> 1) & this.mask;
+            } else {
+                this.overflow.put(this.streamIds[index], (V) this.values[index]);
+                this.streamIds[index] = 0;
+                this.values[index] = null;
+            }
+        }
+
+        this.streamIds[index] = streamId;
+        this.values[index] = value;
+        this.size++;
+
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V remove(final int streamId) {
+        final int index = (streamId >>> 1) & this.mask;
+
+        if (this.streamIds[index] != streamId) {
+            if (this.overflow.isEmpty()) {
+                return null;
+            }
+
+            final V value = this.overflow.remove(streamId);
+
+            if (value != null) {
+                this.size--;
+            }
+
+            return value;
+        }
+
+        final V value = (V) this.values[index];
+
+        this.streamIds[index] = 0;
+        this.values[index] = null;
+        this.size--;
+
+        return value;
+    }
+
+    /**
+     * Removes every stream above the given ID, adding its value to {@code removedValues} if that is not {@code null}.
+     */
+    @SuppressWarnings("unchecked")
+    void removeAbove(final int lastStreamId, final Collection<? super V> removedValues) {
+        for (int index = 0; index < this.streamIds.length && this.size > 0; index++) {
+            if (this.streamIds[index] > lastStreamId) {
+                if (removedValues != null) {
+                    removedValues.add((V) this.values[index]);
+                }
+
+                this.streamIds[index] = 0;
+                this.values[index] = null;
+                this.size--;
+            }
+        }
+
+        final Iterator<IntObjectMap.PrimitiveEntry<V>> entries = this.overflow.entries().iterator();
+
+        while (entries.hasNext()) {
+            final IntObjectMap.PrimitiveEntry<V> entry = entries.next();
+
+            if (entry.key() > lastStreamId) {
+                if (removedValues != null) {
+                    removedValues.add(entry.value());
+                }
+
+                entries.remove();
+                this.size--;
+            }
+        }
+    }
+
+    /**
+     * Adds every value to the given collection, in no particular order.
+     */
+    @SuppressWarnings("unchecked")
+    void addValuesTo(final Collection<? super V> collection) {
+        for (int index = 0; index < this.streamIds.length; index++) {
+            if (this.streamIds[index] != 0) {
+                collection.add((V) this.values[index]);
+            }
+        }
+
+        collection.addAll(this.overflow.values());
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    void clear() {
+        Arrays.fill(this.streamIds, 0);
+        Arrays.fill(this.values, null);
+        this.overflow.clear();
+        this.size = 0;
+    }
+
+    int capacity() {
+        return this.streamIds.length;
+    }
+
+    private void grow() {
+        final int[] oldStreamIds = this.streamIds;
+        final Object[] oldValues = this.values;
+
+        this.streamIds = new int[oldStreamIds.length << 1];
+        this.values = new Object[oldValues.length << 1];
+        this.mask = this.streamIds.length - 1;
+
+        // Streams that had distinct slots under the old mask still do under the wider one
+        for (int index = 0; index < oldStreamIds.length; index++) {
+            if (oldStreamIds[index] != 0) {
+                final int newIndex = (oldStreamIds[index] >>> 1) & this.mask;
+
+                this.streamIds[newIndex] = oldStreamIds[index];
+                this.values[newIndex] = oldValues[index];
+            }
+        }
+    }
+}
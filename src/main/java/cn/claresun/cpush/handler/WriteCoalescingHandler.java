@@ -0,0 +1,137 @@
+package cn.claresun.cpush.handler;
+
+import cn.claresun.cpush.util.Constant;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.concurrent.GenericFutureListener;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sits in front of the {@link io.netty.handler.ssl.SslHandler} and copies the small buffers of a flush, a frame header
+ * and a payload for every HEADERS and DATA frame, into contiguous buffers of up to the wrap size. The SslHandler
+ * encrypts each buffer it is handed into records of its own, so without coalescing a notification of a few hundred
+ * bytes takes four TLS records, each with its own MAC, padding and header.
+ */
+public class WriteCoalescingHandler extends ChannelOutboundHandlerAdapter {
+    private final int wrapSize;
+
+    private final ArrayDeque<ByteBuf> pendingBuffers = new ArrayDeque<>();
+    private final ArrayDeque<ChannelPromise> pendingPromises = new ArrayDeque<>();
+    private int pendingBytes;
+
+    private volatile long recordsWritten;
+
+    /**
+     * @param wrapSize the number of plaintext bytes handed to the SslHandler at once; at most
+     * {@link Constant#MAX_TLS_RECORD_PLAINTEXT_LENGTH}, the most a single TLS record can carry
+     */
+    public WriteCoalescingHandler(final int wrapSize) {
+        if (wrapSize < 1 || wrapSize > Constant.MAX_TLS_RECORD_PLAINTEXT_LENGTH) {
+            throw new IllegalArgumentException("Wrap size must be between 1 and " + Constant.MAX_TLS_RECORD_PLAINTEXT_LENGTH + ".");
+        }
+
+        this.wrapSize = wrapSize;
+    }
+
+    @Override
+    public void write(final ChannelHandlerContext context, final Object message, final ChannelPromise promise) throws Exception {
+        if (message instanceof ByteBuf) {
+            final ByteBuf buffer = (ByteBuf) message;
+
+            this.pendingBuffers.add(buffer);
+            this.pendingPromises.add(promise);
+            this.pendingBytes += buffer.readableBytes();
+        } else {
+            // Keep the order of writes intact for anything we cannot coalesce
+            this.writePendingBuffers(context);
+            context.write(message, promise);
+        }
+    }
+
+    @Override
+    public void flush(final ChannelHandlerContext context) throws Exception {
+        this.writePendingBuffers(context);
+        context.flush();
+    }
+
+    @Override
+    public void close(final ChannelHandlerContext context, final ChannelPromise promise) throws Exception {
+        this.writePendingBuffers(context);
+        context.close(promise);
+    }
+
+    @Override
+    public void handlerRemoved(final ChannelHandlerContext context) throws Exception {
+        this.writePendingBuffers(context);
+    }
+
+    private void writePendingBuffers(final ChannelHandlerContext context) {
+        while (!this.pendingBuffers.isEmpty()) {
+            final ByteBuf firstBuffer = this.pendingBuffers.peek();
+
+            if (firstBuffer.readableBytes() >= this.wrapSize || this.pendingBuffers.size() == 1) {
+                // Nothing to gain from copying a buffer that fills a wrap on its own or has no neighbours
+                this.pendingBytes -= firstBuffer.readableBytes();
+                this.countRecords(firstBuffer.readableBytes());
+                context.write(this.pendingBuffers.poll(), this.pendingPromises.poll());
+                continue;
+            }
+
+            final ByteBuf coalescedBuffer = context.alloc().ioBuffer(Math.min(this.pendingBytes, this.wrapSize));
+            final List<ChannelPromise> coalescedPromises = new ArrayList<>();
+
+            while (!this.pendingBuffers.isEmpty() &&
+                    this.pendingBuffers.peek().readableBytes() <= coalescedBuffer.writableBytes()) {
+
+                final ByteBuf buffer = this.pendingBuffers.poll();
+
+                this.pendingBytes -= buffer.readableBytes();
+                coalescedBuffer.writeBytes(buffer);
+                buffer.release();
+
+                final ChannelPromise promise = this.pendingPromises.poll();
+
+                if (!promise.isVoid()) {
+                    coalescedPromises.add(promise);
+                }
+            }
+
+            this.countRecords(coalescedBuffer.readableBytes());
+
+            if (coalescedPromises.isEmpty()) {
+                context.write(coalescedBuffer, context.voidPromise());
+            } else {
+                context.write(coalescedBuffer).addListener(new GenericFutureListener<ChannelFuture>() {
+
+                    @Override
+                    public void operationComplete(final ChannelFuture future) throws Exception {
+                        for (final ChannelPromise promise : coalescedPromises) {
+                            if (future.isSuccess()) {
+                                promise.trySuccess();
+                            } else {
+                                promise.tryFailure(future.cause());
+                            }
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private void countRecords(final int plaintextLength) {
+        this.recordsWritten += Math.max(1, (plaintextLength + Constant.MAX_TLS_RECORD_PLAINTEXT_LENGTH - 1) / Constant.MAX_TLS_RECORD_PLAINTEXT_LENGTH);
+    }
+
+    /**
+     * Returns the number of TLS records the buffers handed to the SslHandler so far will take.
+     */
+    public long getRecordsWritten() {
+        return this.recordsWritten;
+    }
+}
@@ -14,13 +14,33 @@ public class Constant {
     public static final AsciiString APNS_EXPIRATION_HEADER = new AsciiString("apns-expiration");
     public static final AsciiString APNS_TOPIC_HEADER = new AsciiString("apns-topic");
     public static final AsciiString APNS_PRIORITY_HEADER = new AsciiString("apns-priority");
+    public static final AsciiString APNS_AUTHORIZATION_HEADER = new AsciiString("authorization");
 
-    public static final int INITIAL_PAYLOAD_BUFFER_CAPACITY = 4096;
-    public static final long STREAM_ID_RESET_THRESHOLD = Integer.MAX_VALUE - 1;
+    public static final String APNS_TOPIC_EXTENSION_OID = "1.2.840.113635.100.6.3.6";
+
+    public static final long TOKEN_REFRESH_INTERVAL_MINUTES = 50; // minute
+    public static final long MIN_TOKEN_REFRESH_INTERVAL_MINUTES = 20; // minute
 
-    public static final long DEFAULT_FLUSH_AFTER_IDLE_MILLIS = 250; //millis second
+    public static final long STREAM_ID_RESET_THRESHOLD = Integer.MAX_VALUE - 1;
+    public static final long STREAM_ID_ROTATION_THRESHOLD = STREAM_ID_RESET_THRESHOLD - 2000000;
 
     public static final int DEFAULT_MAX_UNFLUSHED_NOTIFICATIONS = 32;
+    public static final int MAX_FLUSH_BATCH_SIZE = 1024;
+    public static final long DEFAULT_FLUSH_LATENCY_TARGET_MICROS = 1000; // micro second
+    public static final int BATCH_WRITE_CHUNK_SIZE = 256;
+
+    public static final int MAX_TLS_RECORD_PLAINTEXT_LENGTH = 16384;
+    public static final int DEFAULT_TLS_WRAP_SIZE = 16384;
+    public static final int DEFAULT_MAX_PENDING_NOTIFICATIONS = 8192;
+    public static final int INITIAL_STREAM_TABLE_CAPACITY = 64; // grows to span the streams in flight
+
+    public static final int DEFAULT_RESPONSE_QUEUE_CAPACITY = 65536;
+    public static final int DEFAULT_RESPONSE_BATCH_SIZE = 256;
+
+    public static final int IMMEDIATE_SCHEDULING_WEIGHT = 4; // immediate writes per power-conserving write
+    public static final int IMMEDIATE_STREAM_RESERVE_DIVISOR = 10; // a tenth of the streams
+    public static final short IMMEDIATE_STREAM_WEIGHT = 256;
+    public static final short CONSERVE_POWER_STREAM_WEIGHT = 16;
 
     public static final long DEFAULT_WRITE_TIMEOUT_MILLIS = 10000;  // millis second
 
@@ -31,4 +51,18 @@ public class Constant {
 
     public static final int CONNECT_TIMEOUT_MILLIS = 180000;
 
+    public static final int DEFAULT_CONNECTION_POOL_SIZE = 4;
+
+    public static final int ADDRESS_FAILURE_THRESHOLD = 3;
+    public static final long ADDRESS_EJECTION_MILLIS = 30000; // millis second
+    public static final long MAX_ADDRESS_EJECTION_MILLIS = 600000; // millis second
+    public static final int ADDRESS_LATENCY_SMOOTHING_FACTOR = 8;
+    public static final int MAX_ADDRESS_WEIGHT = 100;
+
+    public static final long DNS_REFRESH_INTERVAL_MINUTES = 30; // minute
+    public static final int DNS_REMOVAL_THRESHOLD = 2;
+    public static final long DNS_ROTATION_WINDOW_MILLIS = 60000; // millis second
+    public static final String RESOLV_CONF_PATH = "/etc/resolv.conf";
+    public static final int DNS_PORT = 53;
+
 }
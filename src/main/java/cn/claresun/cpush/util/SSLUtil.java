@@ -7,12 +7,17 @@ import org.slf4j.LoggerFactory;
 
 import javax.net.ssl.SSLException;
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.*;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.Enumeration;
+import java.util.LinkedHashSet;
 import java.util.Objects;
+import java.util.Set;
 
 /**
  * Created by claresun on 16-9-1.
@@ -20,6 +25,12 @@ import java.util.Objects;
 public class SSLUtil {
     private static final Logger log = LoggerFactory.getLogger(SSLUtil.class);
 
+    private static final int DER_OCTET_STRING = 0x04;
+    private static final int DER_UTF8_STRING = 0x0c;
+    private static final int DER_PRINTABLE_STRING = 0x13;
+    private static final int DER_IA5_STRING = 0x16;
+    private static final int DER_SEQUENCE = 0x30;
+
     public static SslContext getSslContextWithP12File(final File p12File, final String password) throws FileNotFoundException, SSLException, IOException {
         try (final InputStream p12InputStream = new FileInputStream(p12File)) {
             return getSslContextWithP12InputStream(p12InputStream, password);
@@ -91,6 +102,13 @@ public class SSLUtil {
                 .build();
     }
 
+    /**
+     * Returns a context without client certificate, for connections that authenticate with provider tokens.
+     */
+    public static SslContext getSslContextForTokenAuthentication() throws SSLException {
+        return getBaseSslContextBuilder().build();
+    }
+
     private static SslContextBuilder getBaseSslContextBuilder() {
         final SslProvider sslProvider;
 
@@ -117,7 +135,95 @@ public class SSLUtil {
                                 ApplicationProtocolNames.HTTP_2));
     }
 
+    /**
+     * Returns the topics the given APNs certificate may send to: the bundle ID in the subject's UID and the topics
+     * listed in Apple's topic extension (1.2.840.113635.100.6.3.6), which multi-topic certificates carry as a DER
+     * sequence of topic names, each followed by a sequence of its topic types.
+     */
+    public static Set<String> getApnsTopicsFromCertificate(final X509Certificate certificate) {
+        final Set<String> topics = new LinkedHashSet<>();
+
+        for (final String keyValuePair : certificate.getSubjectX500Principal().getName().split(",")) {
+            if (keyValuePair.toLowerCase().startsWith("uid=")) {
+                topics.add(keyValuePair.substring(4));
+                break;
+            }
+        }
+
+        final byte[] topicExtensionData = certificate.getExtensionValue(Constant.APNS_TOPIC_EXTENSION_OID);
+
+        if (topicExtensionData != null) {
+            try {
+                // The extension value is an OCTET STRING that wraps the SEQUENCE of topics
+                final ByteBuffer extensionValue = ByteBuffer.wrap(topicExtensionData);
+                final ByteBuffer sequence = readDerElement(readDerElement(extensionValue, DER_OCTET_STRING), DER_SEQUENCE);
+
+                while (sequence.hasRemaining()) {
+                    final int tag = sequence.get(sequence.position()) & 0xff;
+                    final ByteBuffer element = readDerElement(sequence, tag);
+
+                    if (tag == DER_UTF8_STRING || tag == DER_PRINTABLE_STRING || tag == DER_IA5_STRING) {
+                        final byte[] topic = new byte[element.remaining()];
+                        element.get(topic);
+                        topics.add(new String(topic, StandardCharsets.UTF_8));
+                    }
+                }
+            } catch (final BufferUnderflowException | IllegalArgumentException e) {
+                log.warn("Could not parse the APNs topic extension of certificate {}.", certificate.getSubjectX500Principal(), e);
+            }
+        }
+
+        return topics;
+    }
+
+    /**
+     * Reads one DER element with the expected tag from the buffer and returns a buffer over its contents.
+     */
+    private static ByteBuffer readDerElement(final ByteBuffer buffer, final int expectedTag) {
+        final int tag = buffer.get() & 0xff;
+
+        if (tag != expectedTag) {
+            throw new IllegalArgumentException("Expected DER tag " + expectedTag + " but found " + tag);
+        }
+
+        int length = buffer.get() & 0xff;
+
+        if (length > 0x7f) {
+            final int lengthBytes = length & 0x7f;
+
+            if (lengthBytes > 3) {
+                throw new IllegalArgumentException("DER element is too long.");
+            }
+
+            length = 0;
+
+            for (int i = 0; i < lengthBytes; i++) {
+                length = (length << 8) | (buffer.get() & 0xff);
+            }
+        }
+
+        if (length > buffer.remaining()) {
+            throw new IllegalArgumentException("DER element is truncated.");
+        }
+
+        final ByteBuffer contents = buffer.slice();
+        contents.limit(length);
+        buffer.position(buffer.position() + length);
+
+        return contents;
+    }
+
     public static String sanitizeTokenString(final String tokenString) {
-        return tokenString.replaceAll("[^a-fA-F0-9]", "");
+        final StringBuilder sanitized = new StringBuilder(tokenString.length());
+
+        for (int i = 0; i < tokenString.length(); i++) {
+            final char c = tokenString.charAt(i);
+
+            if ((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F')) {
+                sanitized.append(c);
+            }
+        }
+
+        return sanitized.toString();
     }
 }
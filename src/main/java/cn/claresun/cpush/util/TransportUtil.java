@@ -0,0 +1,113 @@
+package cn.claresun.cpush.util;
+
+import io.netty.channel.DefaultSelectStrategyFactory;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SelectStrategy;
+import io.netty.channel.SelectStrategyFactory;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.IntSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.channels.spi.SelectorProvider;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Chooses between the native epoll transport and NIO. Epoll is used on Linux when the native library can be loaded;
+ * everywhere else the NIO transport is used.
+ */
+public class TransportUtil {
+    private static final Logger log = LoggerFactory.getLogger(TransportUtil.class);
+
+    private static final SelectStrategyFactory BUSY_POLL_SELECT_STRATEGY_FACTORY = new SelectStrategyFactory() {
+
+        @Override
+        public SelectStrategy newSelectStrategy() {
+            return new SelectStrategy() {
+
+                @Override
+                public int calculateStrategy(final IntSupplier selectSupplier, final boolean hasTasks) throws Exception {
+                    // Never block in select; poll for ready sockets and go straight back to the I/O loop
+                    return selectSupplier.get();
+                }
+            };
+        }
+    };
+
+    static {
+        // Whether the native library loads does not change, so it is reported once rather than for every group
+        if (Epoll.isAvailable()) {
+            log.info("Native epoll transport is available.");
+        } else {
+            log.info("Native epoll transport is not available; NIO will be used instead.");
+            log.debug("Epoll is unavailable because:", Epoll.unavailabilityCause());
+        }
+    }
+
+    public static boolean isEpollAvailable() {
+        return Epoll.isAvailable();
+    }
+
+    /**
+     * Creates an event loop group with one thread per available processor.
+     */
+    public static EventLoopGroup newEventLoopGroup() {
+        return newEventLoopGroup(Runtime.getRuntime().availableProcessors(), true, false);
+    }
+
+    public static EventLoopGroup newEventLoopGroup(final int threads) {
+        return newEventLoopGroup(threads, true, false);
+    }
+
+    /**
+     * Creates an event loop group with the given number of threads. If {@code preferEpoll} is set and epoll is
+     * available, the group uses the native epoll transport; otherwise it uses NIO. A busy-polling group never blocks
+     * waiting for I/O, which takes the wake-up latency out of every read and write at the cost of keeping each of its
+     * threads spinning on a core.
+     */
+    public static EventLoopGroup newEventLoopGroup(final int threads, final boolean preferEpoll, final boolean busyPoll) {
+        final SelectStrategyFactory selectStrategyFactory = busyPoll ?
+                BUSY_POLL_SELECT_STRATEGY_FACTORY : DefaultSelectStrategyFactory.INSTANCE;
+
+        if (preferEpoll && isEpollAvailable()) {
+            log.debug("Creating an epoll event loop group with {} threads.", threads);
+            return new EpollEventLoopGroup(threads, (ThreadFactory) null, selectStrategyFactory);
+        }
+
+        log.debug("Creating a NIO event loop group with {} threads.", threads);
+
+        return new NioEventLoopGroup(threads, (Executor) null, SelectorProvider.provider(), selectStrategyFactory);
+    }
+
+    /**
+     * Returns the socket channel type that can be registered with the given event loop group.
+     */
+    public static Class<? extends SocketChannel> getSocketChannelClass(final EventLoopGroup eventLoopGroup) {
+        return isEpoll(eventLoopGroup) ? EpollSocketChannel.class : NioSocketChannel.class;
+    }
+
+    /**
+     * Returns the datagram channel type that can be registered with the given event loop group.
+     */
+    public static Class<? extends DatagramChannel> getDatagramChannelClass(final EventLoopGroup eventLoopGroup) {
+        return isEpoll(eventLoopGroup) ? EpollDatagramChannel.class : NioDatagramChannel.class;
+    }
+
+    private static boolean isEpoll(final EventLoopGroup eventLoopGroup) {
+        if (eventLoopGroup instanceof EventLoop) {
+            return ((EventLoop) eventLoopGroup).parent() instanceof EpollEventLoopGroup;
+        }
+
+        return eventLoopGroup instanceof EpollEventLoopGroup;
+    }
+}
@@ -0,0 +1,171 @@
+package cn.claresun.cpush;
+
+import cn.claresun.cpush.dns.InetAddressPool;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.resolver.dns.DnsServerAddresses;
+import io.netty.util.concurrent.DefaultPromise;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * APNSClientPool routing and warm-up quorum tests, with clients whose connection state is fixed by the test.
+ */
+public class APNSClientPoolTest {
+    private EventLoopGroup eventLoopGroup;
+    private InetAddressPool inetAddressPool;
+
+    @Before
+    public void before() {
+        this.eventLoopGroup = new NioEventLoopGroup(1);
+
+        // Never initialized, so the name server is never asked
+        this.inetAddressPool = new InetAddressPool("api.push.apple.com", this.eventLoopGroup,
+                DnsServerAddresses.singleton(new InetSocketAddress("127.0.0.1", 53)));
+    }
+
+    @After
+    public void after() throws Exception {
+        this.inetAddressPool.close();
+        this.eventLoopGroup.shutdownGracefully().await();
+    }
+
+    @Test
+    public void testRoutesToConnectedClientWithFewestInFlightNotifications() throws Exception {
+        final List<APNSClient> clients = Arrays.<APNSClient>asList(
+                new StubClient(true, 5),
+                new StubClient(false, 0),
+                new StubClient(true, 2),
+                new StubClient(true, 7));
+
+        for (int offset = 0; offset < clients.size(); offset++) {
+            Assert.assertSame(clients.get(2), APNSClientPool.leastInFlight(clients, offset));
+        }
+    }
+
+    @Test
+    public void testTiesGoToTheClientAtTheScanOffset() throws Exception {
+        final List<APNSClient> clients = Arrays.<APNSClient>asList(
+                new StubClient(true, 1),
+                new StubClient(true, 1),
+                new StubClient(true, 1));
+
+        for (int offset = 0; offset < 2 * clients.size(); offset++) {
+            Assert.assertSame(clients.get(offset % clients.size()), APNSClientPool.leastInFlight(clients, offset));
+        }
+
+        // The offset keeps counting up, so it wraps around without leaving the list
+        Assert.assertSame(clients.get(Integer.MAX_VALUE % clients.size()), APNSClientPool.leastInFlight(clients, Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testNoClientIsSelectedWhileNoneIsConnected() throws Exception {
+        final List<APNSClient> clients = Arrays.<APNSClient>asList(new StubClient(false, 0), new StubClient(false, 0));
+        Assert.assertNull(APNSClientPool.leastInFlight(clients, 0));
+    }
+
+    @Test
+    public void testQuorumSucceedsBeforeEveryConnectionIsReady() {
+        final List<Promise<Void>> promises = newPromises(3);
+        final Future<Void> quorumFuture = APNSClientPool.aggregate(new ArrayList<Future<Void>>(promises), 2);
+
+        promises.get(0).setSuccess(null);
+        Assert.assertFalse(quorumFuture.isDone());
+
+        // One failure is tolerated as long as two connections can still succeed
+        promises.get(1).setFailure(new IOException("refused"));
+        Assert.assertFalse(quorumFuture.isDone());
+
+        promises.get(2).setSuccess(null);
+        Assert.assertTrue(quorumFuture.isSuccess());
+    }
+
+    @Test
+    public void testQuorumFailsOnceItCannotBeReached() {
+        final List<Promise<Void>> promises = newPromises(3);
+        final Future<Void> quorumFuture = APNSClientPool.aggregate(new ArrayList<Future<Void>>(promises), 2);
+
+        final IOException cause = new IOException("unreachable");
+
+        promises.get(0).setFailure(new IOException("refused"));
+        promises.get(1).setFailure(cause);
+
+        // The last connection is still opening, but two successes are no longer possible
+        Assert.assertTrue(quorumFuture.isDone());
+        Assert.assertSame(cause, quorumFuture.cause());
+
+        promises.get(2).setSuccess(null);
+        Assert.assertSame(cause, quorumFuture.cause());
+    }
+
+    @Test
+    public void testFullQuorumFailsOnFirstFailure() {
+        final List<Promise<Void>> promises = newPromises(2);
+        final Future<Void> quorumFuture = APNSClientPool.aggregate(new ArrayList<Future<Void>>(promises), 2);
+
+        promises.get(0).setSuccess(null);
+        promises.get(1).setFailure(new IOException("refused"));
+
+        Assert.assertFalse(quorumFuture.isSuccess());
+        Assert.assertTrue(quorumFuture.isDone());
+    }
+
+    @Test
+    public void testQuorumOfAlreadyCompletedFutures() {
+        final List<Promise<Void>> promises = newPromises(2);
+        promises.get(0).setSuccess(null);
+        promises.get(1).setSuccess(null);
+
+        Assert.assertTrue(APNSClientPool.aggregate(new ArrayList<Future<Void>>(promises), 2).isSuccess());
+    }
+
+    private static List<Promise<Void>> newPromises(final int count) {
+        final List<Promise<Void>> promises = new ArrayList<>(count);
+
+        // Listeners run as soon as a promise completes, so the quorum is decided before the next line of the test
+        for (int i = 0; i < count; i++) {
+            promises.add(new DefaultPromise<Void>(ImmediateEventExecutor.INSTANCE));
+        }
+
+        return promises;
+    }
+
+    /**
+     * A client that never connects and reports a fixed state.
+     */
+    private class StubClient extends APNSClient {
+        private final boolean connected;
+        private final int inFlightNotifications;
+
+        private StubClient(final boolean connected, final int inFlightNotifications) throws SSLException {
+            super(SslContextBuilder.forClient().build(), "api.push.apple.com", 443, APNSClientPoolTest.this.eventLoopGroup,
+                    APNSClientPoolTest.this.inetAddressPool);
+
+            this.connected = connected;
+            this.inFlightNotifications = inFlightNotifications;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return this.connected;
+        }
+
+        @Override
+        public int getInFlightNotifications() {
+            return this.inFlightNotifications;
+        }
+    }
+}
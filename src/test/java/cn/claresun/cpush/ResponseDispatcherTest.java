@@ -0,0 +1,115 @@
+package cn.claresun.cpush;
+
+import cn.claresun.cpush.handler.APNSNotificationResponse;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ResponseDispatcher tests with a direct and a pooled executor.
+ */
+public class ResponseDispatcherTest {
+
+    @Test
+    public void testResponsesAreDeliveredInOrderedBatches() throws Exception {
+        final int responseCount = 10000;
+        final List<APNSNotificationResponse> received = new ArrayList<>();
+        final List<Integer> batchSizes = new ArrayList<>();
+        final CountDownLatch allReceived = new CountDownLatch(responseCount);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        try {
+            final ResponseDispatcher dispatcher = new ResponseDispatcher(executor, responseCount, 64, new OnBatchReceived<APNSNotificationResponse>() {
+
+                @Override
+                public void received(final List<APNSNotificationResponse> batch) {
+                    // Only one drain runs at a time, so no locking is needed here
+                    received.addAll(batch);
+                    batchSizes.add(batch.size());
+
+                    for (int i = 0; i < batch.size(); i++) {
+                        allReceived.countDown();
+                    }
+                }
+            });
+
+            final List<APNSNotificationResponse> sent = new ArrayList<>(responseCount);
+
+            for (int i = 0; i < responseCount; i++) {
+                final APNSNotificationResponse response = new APNSNotificationResponse(null, true, null, null);
+                sent.add(response);
+
+                Assert.assertTrue(dispatcher.dispatch(response));
+            }
+
+            Assert.assertTrue(allReceived.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(sent, received);
+            Assert.assertEquals(0, dispatcher.getDroppedResponses());
+
+            for (final int batchSize : batchSizes) {
+                Assert.assertTrue(batchSize <= 64);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testFullQueueDropsResponses() {
+        final List<Runnable> tasks = new ArrayList<>();
+        final List<List<APNSNotificationResponse>> batches = new ArrayList<>();
+        final List<APNSNotificationResponse> dropped = new ArrayList<>();
+
+        final ResponseDispatcher dispatcher = new ResponseDispatcher(new Executor() {
+
+            @Override
+            public void execute(final Runnable task) {
+                tasks.add(task);
+            }
+        }, 4, 3, new OnBatchReceived<APNSNotificationResponse>() {
+
+            @Override
+            public void received(final List<APNSNotificationResponse> batch) {
+                batches.add(batch);
+            }
+        }, new OnResponseDropped() {
+
+            @Override
+            public void dropped(final APNSNotificationResponse response) {
+                dropped.add(response);
+            }
+        });
+
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(dispatcher.dispatch(new APNSNotificationResponse(null, true, null, null)));
+        }
+
+        final APNSNotificationResponse unanswered = new APNSNotificationResponse(null, new IllegalStateException("closed"));
+
+        Assert.assertFalse(dispatcher.dispatch(unanswered));
+        Assert.assertEquals(1, dispatcher.getDroppedResponses());
+        Assert.assertEquals(Collections.singletonList(unanswered), dropped);
+
+        // The listener has not run yet, so only one drain was submitted
+        Assert.assertEquals(1, tasks.size());
+        Assert.assertTrue(batches.isEmpty());
+
+        tasks.get(0).run();
+
+        Assert.assertEquals(2, batches.size());
+        Assert.assertEquals(3, batches.get(0).size());
+        Assert.assertEquals(1, batches.get(1).size());
+
+        // The drained queue has room again
+        Assert.assertTrue(dispatcher.dispatch(unanswered));
+    }
+}
@@ -0,0 +1,146 @@
+package cn.claresun.cpush.auth;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * AuthenticationTokenProvider tests with a throwaway P-256 key.
+ */
+public class AuthenticationTokenProviderTest {
+    private KeyPair keyPair;
+    private AuthenticationTokenProvider authenticationTokenProvider;
+
+    @Before
+    public void before() throws Exception {
+        final KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+        keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+
+        this.keyPair = keyPairGenerator.generateKeyPair();
+        this.authenticationTokenProvider = new AuthenticationTokenProvider("TEAM123456", "KEY1234567", this.keyPair.getPrivate());
+    }
+
+    @Test
+    public void testTokenIsSignedWithEs256() throws Exception {
+        final String authorizationHeader = this.authenticationTokenProvider.getAuthorizationHeader().toString();
+        Assert.assertTrue(authorizationHeader.startsWith("bearer "));
+
+        final String[] parts = authorizationHeader.substring("bearer ".length()).split("\\.");
+        Assert.assertEquals(3, parts.length);
+
+        final JsonObject header = new JsonParser().parse(new String(Base64.getUrlDecoder().decode(parts[0]), StandardCharsets.UTF_8)).getAsJsonObject();
+        final JsonObject claims = new JsonParser().parse(new String(Base64.getUrlDecoder().decode(parts[1]), StandardCharsets.UTF_8)).getAsJsonObject();
+
+        Assert.assertEquals("ES256", header.get("alg").getAsString());
+        Assert.assertEquals("KEY1234567", header.get("kid").getAsString());
+        Assert.assertEquals("TEAM123456", claims.get("iss").getAsString());
+
+        final byte[] joseSignature = Base64.getUrlDecoder().decode(parts[2]);
+        Assert.assertEquals(64, joseSignature.length);
+
+        final Signature signature = Signature.getInstance("SHA256withECDSA");
+        signature.initVerify(this.keyPair.getPublic());
+        signature.update((parts[0] + "." + parts[1]).getBytes(StandardCharsets.US_ASCII));
+
+        Assert.assertTrue(signature.verify(toDerSignature(joseSignature)));
+    }
+
+    @Test
+    public void testTokenIsCached() throws Exception {
+        Assert.assertSame(this.authenticationTokenProvider.getAuthorizationHeader(),
+                this.authenticationTokenProvider.getAuthorizationHeader());
+
+        // A token this young is not replaced when APNs reports it as expired
+        final Object authorizationHeader = this.authenticationTokenProvider.getAuthorizationHeader();
+        this.authenticationTokenProvider.handleExpiredToken();
+        Assert.assertSame(authorizationHeader, this.authenticationTokenProvider.getAuthorizationHeader());
+    }
+
+    @Test
+    public void testRefreshRunsUntilTheLastUserStops() {
+        this.authenticationTokenProvider.start();
+        this.authenticationTokenProvider.start();
+        Assert.assertTrue(this.authenticationTokenProvider.isRefreshing());
+
+        this.authenticationTokenProvider.stop();
+        Assert.assertTrue(this.authenticationTokenProvider.isRefreshing());
+
+        this.authenticationTokenProvider.stop();
+        Assert.assertFalse(this.authenticationTokenProvider.isRefreshing());
+
+        // Unmatched stops are ignored, and the provider can be started again
+        this.authenticationTokenProvider.stop();
+        this.authenticationTokenProvider.start();
+        Assert.assertTrue(this.authenticationTokenProvider.isRefreshing());
+
+        this.authenticationTokenProvider.stop();
+        Assert.assertFalse(this.authenticationTokenProvider.isRefreshing());
+    }
+
+    @Test
+    public void testShortSignatureIntegersArePadded() throws Exception {
+        // R is 31 bytes long and S has a sign byte in front of its 32 bytes
+        final byte[] derSignature = new byte[2 + 2 + 31 + 2 + 33];
+        derSignature[0] = 0x30;
+        derSignature[1] = (byte) (derSignature.length - 2);
+        derSignature[2] = 0x02;
+        derSignature[3] = 31;
+        derSignature[4] = 0x01;
+        derSignature[35] = 0x02;
+        derSignature[36] = 33;
+        derSignature[37] = 0x00;
+        derSignature[38] = (byte) 0x80;
+
+        final byte[] joseSignature = AuthenticationTokenProvider.toJoseSignature(derSignature);
+
+        Assert.assertEquals(64, joseSignature.length);
+        Assert.assertEquals(0x00, joseSignature[0]);
+        Assert.assertEquals(0x01, joseSignature[1]);
+        Assert.assertEquals((byte) 0x80, joseSignature[32]);
+    }
+
+    /**
+     * Turns a JOSE (R || S) signature back into the DER sequence the JDK verifies.
+     */
+    private static byte[] toDerSignature(final byte[] joseSignature) {
+        final byte[] r = toDerInteger(Arrays.copyOfRange(joseSignature, 0, 32));
+        final byte[] s = toDerInteger(Arrays.copyOfRange(joseSignature, 32, 64));
+
+        final byte[] derSignature = new byte[2 + r.length + s.length];
+        derSignature[0] = 0x30;
+        derSignature[1] = (byte) (r.length + s.length);
+        System.arraycopy(r, 0, derSignature, 2, r.length);
+        System.arraycopy(s, 0, derSignature, 2 + r.length, s.length);
+
+        return derSignature;
+    }
+
+    private static byte[] toDerInteger(final byte[] unsignedValue) {
+        int start = 0;
+
+        while (start < unsignedValue.length - 1 && unsignedValue[start] == 0) {
+            start++;
+        }
+
+        // A set high bit would read as negative, so it needs a zero sign byte in front
+        final int signLength = (unsignedValue[start] & 0x80) != 0 ? 1 : 0;
+        final int valueLength = unsignedValue.length - start;
+
+        final byte[] derInteger = new byte[2 + signLength + valueLength];
+        derInteger[0] = 0x02;
+        derInteger[1] = (byte) (signLength + valueLength);
+        System.arraycopy(unsignedValue, start, derInteger, 2 + signLength, valueLength);
+
+        return derInteger;
+    }
+}
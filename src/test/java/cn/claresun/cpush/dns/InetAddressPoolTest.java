@@ -0,0 +1,172 @@
+package cn.claresun.cpush.dns;
+
+import cn.claresun.cpush.mock.MockDnsServer;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.resolver.dns.DnsServerAddresses;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.*;
+
+/**
+ * InetAddressPool tests against a stand-in DNS server.
+ */
+public class InetAddressPoolTest {
+    private static final String HOST = "api.push.example";
+
+    private MockDnsServer dnsServer;
+    private InetSocketAddress dnsServerAddress;
+    private NioEventLoopGroup eventLoopGroup;
+    private InetAddressPool inetAddressPool;
+
+    @Before
+    public void before() throws Exception {
+        this.dnsServer = new MockDnsServer();
+        this.dnsServer.setAddresses("10.0.0.1", "10.0.0.2", "10.0.0.3", "10.0.0.4", "10.0.0.5");
+
+        this.dnsServerAddress = this.dnsServer.start();
+
+        this.eventLoopGroup = new NioEventLoopGroup(1);
+        this.inetAddressPool = new InetAddressPool(HOST, this.eventLoopGroup,
+                DnsServerAddresses.singleton(this.dnsServerAddress));
+    }
+
+    @After
+    public void after() throws Exception {
+        this.inetAddressPool.close();
+        this.eventLoopGroup.shutdownGracefully().await();
+        this.dnsServer.shutdown();
+    }
+
+    @Test
+    public void testInit() throws Exception {
+        Assert.assertSame(this.inetAddressPool, this.inetAddressPool.init().sync().getNow());
+        Assert.assertEquals(5, this.inetAddressPool.getAddresses().size());
+        Assert.assertTrue(this.inetAddressPool.contains(InetAddress.getByName("10.0.0.5")));
+    }
+
+    @Test
+    public void testPoolsArePerHost() throws Exception {
+        final InetAddressPool otherPool = new InetAddressPool("api.development.push.example", this.eventLoopGroup,
+                DnsServerAddresses.singleton(this.dnsServerAddress));
+
+        this.inetAddressPool.init().sync();
+        this.dnsServer.setAddresses("10.1.0.1", "10.1.0.2", "10.1.0.3", "10.1.0.4");
+        otherPool.init().sync();
+
+        Assert.assertEquals(5, this.inetAddressPool.getAddresses().size());
+        Assert.assertEquals(4, otherPool.getAddresses().size());
+        Assert.assertFalse(this.inetAddressPool.contains(InetAddress.getByName("10.1.0.1")));
+
+        otherPool.close();
+    }
+
+    @Test
+    public void testNextVisitsEveryAddress() throws Exception {
+        this.inetAddressPool.init().sync();
+
+        final Set<InetAddress> selected = new HashSet<>();
+
+        for (int i = 0; i < 5; i++) {
+            selected.add(this.inetAddressPool.next());
+        }
+
+        Assert.assertEquals(5, selected.size());
+    }
+
+    @Test
+    public void testNextSkipsEjectedAddress() throws Exception {
+        this.inetAddressPool.init().sync();
+
+        final InetAddress failing = InetAddress.getByName("10.0.0.3");
+
+        for (int i = 0; i < 3; i++) {
+            this.inetAddressPool.reportConnectFailure(failing);
+        }
+
+        for (int i = 0; i < 100; i++) {
+            Assert.assertNotEquals(failing, this.inetAddressPool.next());
+        }
+
+        this.inetAddressPool.reportSuccess(failing);
+
+        final Set<InetAddress> selected = new HashSet<>();
+
+        for (int i = 0; i < 5; i++) {
+            selected.add(this.inetAddressPool.next());
+        }
+
+        Assert.assertTrue(selected.contains(failing));
+    }
+
+    @Test
+    public void testNextPrefersFasterAddress() throws Exception {
+        this.inetAddressPool.init().sync();
+
+        final InetAddress fast = InetAddress.getByName("10.0.0.1");
+
+        for (final InetAddressWrapper wrapper : this.inetAddressPool.getAddresses()) {
+            this.inetAddressPool.reportLatency(wrapper.getAddress(), wrapper.getAddress().equals(fast) ? 1000000 : 10000000);
+        }
+
+        int fastSelections = 0;
+
+        for (int i = 0; i < 140; i++) {
+            if (fast.equals(this.inetAddressPool.next())) {
+                fastSelections++;
+            }
+        }
+
+        Assert.assertEquals(100, fastSelections);
+    }
+
+    @Test
+    public void testTlsResumptionIsTrackedPerAddress() throws Exception {
+        this.inetAddressPool.init().sync();
+
+        final InetAddress first = InetAddress.getByName("10.0.0.1");
+        final InetAddress second = InetAddress.getByName("10.0.0.2");
+
+        this.inetAddressPool.reportTlsHandshake(first, false);
+        this.inetAddressPool.reportTlsHandshake(second, false);
+        this.inetAddressPool.reportTlsHandshake(first, true);
+        this.inetAddressPool.reportTlsHandshake(second, false);
+
+        Assert.assertEquals(4, this.inetAddressPool.getTlsHandshakes());
+        Assert.assertEquals(1, this.inetAddressPool.getTlsResumptions());
+        Assert.assertEquals(1, this.inetAddressPool.getTlsResumptions());
+        Assert.assertEquals(0.25, this.inetAddressPool.getTlsResumptionRate(), 0.0001);
+    }
+
+    @Test
+    public void testRefreshRemovesAddressAfterRepeatedMisses() throws Exception {
+        this.inetAddressPool.init().sync();
+
+        final List<InetAddress> added = new ArrayList<>();
+        final List<InetAddress> removed = new ArrayList<>();
+
+        this.inetAddressPool.addListener(new OnAddressesChanged() {
+            @Override
+            public void changed(final Collection<InetAddress> addedAddresses, final Collection<InetAddress> removedAddresses) {
+                added.addAll(addedAddresses);
+                removed.addAll(removedAddresses);
+            }
+        });
+
+        this.dnsServer.setAddresses("10.0.0.1", "10.0.0.2", "10.0.0.3", "10.0.0.4", "10.0.0.6");
+
+        this.inetAddressPool.refresh().sync();
+        Assert.assertEquals(Collections.singletonList(InetAddress.getByName("10.0.0.6")), added);
+        Assert.assertTrue(removed.isEmpty());
+        Assert.assertTrue(this.inetAddressPool.contains(InetAddress.getByName("10.0.0.5")));
+
+        this.inetAddressPool.refresh().sync();
+        Assert.assertEquals(Collections.singletonList(InetAddress.getByName("10.0.0.5")), removed);
+        Assert.assertFalse(this.inetAddressPool.contains(InetAddress.getByName("10.0.0.5")));
+        Assert.assertEquals(5, this.inetAddressPool.getAddresses().size());
+    }
+}
@@ -1,7 +1,8 @@
 package cn.claresun.cpush.dns;
 
-import cn.claresun.cpush.exception.PoolNotReadyException;
 import cn.claresun.cpush.util.Constant;
+import io.netty.channel.nio.NioEventLoopGroup;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -16,17 +17,25 @@ public class InteInetAddressWrapperTest {
 
     final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
 
+    private NioEventLoopGroup eventLoopGroup;
     private InetAddressPool inetAddressPool;
 
     @Before
-    public void before() throws PoolNotReadyException {
-        inetAddressPool = InetAddressPool.getInstance();
+    public void before() {
+        eventLoopGroup = new NioEventLoopGroup(1);
+        inetAddressPool = new InetAddressPool(Constant.PRODUCTION_APNS_HOST, eventLoopGroup);
+    }
+
+    @After
+    public void after() throws InterruptedException {
+        inetAddressPool.close();
+        eventLoopGroup.shutdownGracefully().await();
     }
 
     @Test
-    public void testGetByName() throws PoolNotReadyException {
+    public void testGetByName() throws InterruptedException {
 
-        inetAddressPool.init(Constant.PRODUCTION_APNS_HOST);
+        inetAddressPool.init().sync();
         for (int i = 0; i < 12; i++) {
             System.out.println(inetAddressPool.next());
         }
@@ -0,0 +1,40 @@
+package cn.claresun.cpush.dns;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+/**
+ * ResolvConf parsing tests.
+ */
+public class ResolvConfTest {
+
+    @Test
+    public void testParseNameServersInOrder() throws Exception {
+        final List<InetSocketAddress> addresses = ResolvConf.parse(new StringReader(
+                "# generated\n" +
+                "search example.com\n" +
+                "nameserver 10.0.0.53\n" +
+                "options ndots:1\n" +
+                "  nameserver\t2001:db8::53  # secondary\n"));
+
+        Assert.assertEquals(2, addresses.size());
+        Assert.assertEquals("10.0.0.53", addresses.get(0).getAddress().getHostAddress());
+        Assert.assertEquals(53, addresses.get(0).getPort());
+        Assert.assertEquals("2001:db8:0:0:0:0:0:53", addresses.get(1).getAddress().getHostAddress());
+    }
+
+    @Test
+    public void testParseWithoutNameServers() throws Exception {
+        Assert.assertTrue(ResolvConf.parse(new StringReader("search example.com\n")).isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void testParseRejectsHostNames() throws Exception {
+        ResolvConf.parse(new StringReader("nameserver dns.example.com\n"));
+    }
+}
@@ -0,0 +1,500 @@
+package cn.claresun.cpush.handler;
+
+import cn.claresun.cpush.APNSClient;
+import cn.claresun.cpush.Result;
+import cn.claresun.cpush.auth.AuthenticationTokenProvider;
+import cn.claresun.cpush.exception.NotConnectedException;
+import cn.claresun.cpush.exception.PendingQueueFullException;
+import cn.claresun.cpush.exception.ResponseTimeoutException;
+import cn.claresun.cpush.util.Constant;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.codec.http2.DefaultHttp2FrameReader;
+import io.netty.handler.codec.http2.DefaultHttp2FrameWriter;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2Error;
+import io.netty.handler.codec.http2.Http2FrameAdapter;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.util.concurrent.DefaultPromise;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.Promise;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * APNSClientHandler tests on an embedded channel. The gateway's side of the connection is played by a frame writer
+ * and reader, so every frame the handler sends or receives is visible to the test.
+ */
+public class APNSClientHandlerTest {
+    private static final String TOPIC = "com.example.app";
+
+    private EventLoopGroup eventLoopGroup;
+    private APNSClient apnsClient;
+
+    private EmbeddedChannel channel;
+    private APNSClientHandler handler;
+
+    // Only provides a context for the gateway's frame writer and reader
+    private EmbeddedChannel gatewayChannel;
+    private ChannelHandlerContext gatewayContext;
+
+    private final DefaultHttp2FrameWriter gatewayFrameWriter = new DefaultHttp2FrameWriter();
+    private final DefaultHttp2FrameReader gatewayFrameReader = new DefaultHttp2FrameReader();
+    private final ByteBuf clientBytes = Unpooled.buffer();
+
+    private final List<Integer> writtenStreamIds = new ArrayList<>();
+    private final List<Http2Headers> writtenHeaders = new ArrayList<>();
+    private final List<Integer> resetStreamIds = new ArrayList<>();
+
+    @Before
+    public void before() throws Exception {
+        this.eventLoopGroup = new NioEventLoopGroup(1);
+
+        // Never connected; it only receives the handler's responses and failures
+        this.apnsClient = new APNSClient((AuthenticationTokenProvider) null, "api.push.apple.com", 443, this.eventLoopGroup);
+
+        this.gatewayChannel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        this.gatewayContext = this.gatewayChannel.pipeline().firstContext();
+    }
+
+    @After
+    public void after() throws Exception {
+        if (this.channel != null) {
+            this.channel.finishAndReleaseAll();
+        }
+
+        this.gatewayChannel.finishAndReleaseAll();
+        this.clientBytes.release();
+
+        this.apnsClient.disconnect();
+        this.eventLoopGroup.shutdownGracefully().await();
+    }
+
+    @Test
+    public void testBuildLikeClientPipeline() {
+        final APNSClientHandler.APNSClientHandlerBuilder builder = new APNSClientHandler.APNSClientHandlerBuilder();
+        builder.initialSettings(new Http2Settings().maxConcurrentStreams(100));
+
+        // The same chain as APNSClient's configurePipeline
+        final APNSClientHandler handler = builder
+                .server(false)
+                .authority("api.push.apple.com")
+                .maxUnflushedNotifications(Constant.DEFAULT_MAX_UNFLUSHED_NOTIFICATIONS)
+                .flushLatencyTargetNanos(TimeUnit.MICROSECONDS.toNanos(Constant.DEFAULT_FLUSH_LATENCY_TARGET_MICROS))
+                .adaptiveFlush(false)
+                .pendingQueue(Constant.DEFAULT_MAX_PENDING_NOTIFICATIONS, PendingQueuePolicy.FAIL_FAST)
+                .responseTimeoutNanos(0)
+                .encoderEnforceMaxConcurrentStreams(false)
+                .build();
+
+        Assert.assertFalse(handler.connection().isServer());
+
+        final EmbeddedChannel channel = new EmbeddedChannel(handler);
+        channel.flush();
+
+        final ByteBuf preface = channel.readOutbound();
+
+        Assert.assertTrue(preface.readableBytes() >= Http2CodecUtil.connectionPrefaceBuf().readableBytes());
+        Assert.assertEquals(Http2CodecUtil.connectionPrefaceBuf(), preface.slice(0, Http2CodecUtil.connectionPrefaceBuf().readableBytes()));
+
+        preface.release();
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testResponsesCompleteRequestPromises() throws Exception {
+        this.connect(10, 0);
+
+        final Promise<Result> acceptedPromise = this.write(newNotification(1, DeliveryPriority.IMMEDIATE));
+        final Promise<Result> rejectedPromise = this.write(newNotification(2, DeliveryPriority.IMMEDIATE));
+
+        Assert.assertEquals(Arrays.asList(1, 3), this.readWrittenStreamIds());
+
+        this.respond(3, "400", "{\"reason\":\"BadDeviceToken\"}");
+        this.respond(1, "200", null);
+
+        Assert.assertTrue(acceptedPromise.isSuccess());
+        Assert.assertTrue(((APNSNotificationResponse) acceptedPromise.getNow()).isAccepted());
+
+        Assert.assertTrue(rejectedPromise.isSuccess());
+
+        final APNSNotificationResponse rejection = (APNSNotificationResponse) rejectedPromise.getNow();
+
+        Assert.assertFalse(rejection.isAccepted());
+        Assert.assertEquals(RejectionReason.BAD_DEVICE_TOKEN, rejection.getReason());
+        Assert.assertEquals(newNotification(2, DeliveryPriority.IMMEDIATE).getToken(), rejection.getNotification().getToken());
+    }
+
+    @Test
+    public void testClosedChannelFailsUnansweredRequests() throws Exception {
+        this.connect(10, 0);
+
+        final Promise<Result> answeredPromise = this.write(newNotification(1, DeliveryPriority.IMMEDIATE));
+        final Promise<Result> unansweredPromise = this.write(newNotification(2, DeliveryPriority.IMMEDIATE));
+
+        this.respond(1, "200", null);
+
+        // The connection is lost rather than closed gracefully, which would wait for the open stream
+        this.channel.unsafe().close(this.channel.voidPromise());
+        this.channel.runPendingTasks();
+
+        Assert.assertTrue(answeredPromise.isSuccess());
+        Assert.assertTrue(unansweredPromise.isDone());
+        Assert.assertTrue(unansweredPromise.cause() instanceof IllegalStateException);
+    }
+
+    @Test
+    public void testResponseTimeoutResetsStream() throws Exception {
+        this.connect(10, TimeUnit.MILLISECONDS.toNanos(10));
+
+        final Promise<Result> responsePromise = this.write(newNotification(1, DeliveryPriority.IMMEDIATE));
+
+        Thread.sleep(50);
+        this.channel.runScheduledPendingTasks();
+
+        Assert.assertTrue(responsePromise.isDone());
+        Assert.assertTrue(responsePromise.cause() instanceof ResponseTimeoutException);
+
+        this.readWrittenStreamIds();
+        Assert.assertEquals(Collections.singletonList(1), this.resetStreamIds);
+
+        // A response that arrives after the reset is ignored
+        this.respond(1, "200", null);
+        Assert.assertTrue(responsePromise.cause() instanceof ResponseTimeoutException);
+    }
+
+    @Test
+    public void testPendingQueueWaitsForFreeStreams() throws Exception {
+        this.connect(1, 0);
+
+        final Promise<Result> firstPromise = this.write(newNotification(1, DeliveryPriority.IMMEDIATE));
+        final Promise<Result> secondPromise = this.write(newNotification(2, DeliveryPriority.IMMEDIATE));
+        final Promise<Result> thirdPromise = this.write(newNotification(3, DeliveryPriority.IMMEDIATE));
+
+        Assert.assertEquals(Collections.singletonList(1), this.readWrittenStreamIds());
+        Assert.assertEquals(2, this.handler.getPendingQueueDepth());
+
+        // Every answered stream makes room for the next queued notification, in the order they were written
+        this.respond(1, "200", null);
+        Assert.assertEquals(Collections.singletonList(3), this.readWrittenStreamIds());
+        Assert.assertEquals(1, this.handler.getPendingQueueDepth());
+
+        this.respond(3, "200", null);
+        Assert.assertEquals(Collections.singletonList(5), this.readWrittenStreamIds());
+        Assert.assertEquals(0, this.handler.getPendingQueueDepth());
+
+        this.respond(5, "200", null);
+
+        Assert.assertTrue(firstPromise.isSuccess());
+        Assert.assertTrue(secondPromise.isSuccess());
+        Assert.assertTrue(thirdPromise.isSuccess());
+        Assert.assertEquals(Arrays.asList(token(1), token(2), token(3)), this.writtenTokens());
+    }
+
+    @Test
+    public void testFullPendingQueueFailsFast() throws Exception {
+        this.connect(1, 0, 1, PendingQueuePolicy.FAIL_FAST);
+
+        this.write(newNotification(1, DeliveryPriority.IMMEDIATE));
+        this.write(newNotification(2, DeliveryPriority.IMMEDIATE));
+
+        final ChannelFuture writeFuture = this.channel.write(new APNSNotificationRequest(newNotification(3, DeliveryPriority.IMMEDIATE), null));
+
+        Assert.assertTrue(writeFuture.cause() instanceof PendingQueueFullException);
+        Assert.assertEquals(1, this.handler.getPendingQueueDepth());
+    }
+
+    @Test
+    public void testFullPendingQueueDropsLowestPriority() throws Exception {
+        this.connect(1, 0, 2, PendingQueuePolicy.DROP_LOWEST_PRIORITY);
+
+        this.write(newNotification(1, DeliveryPriority.IMMEDIATE));
+
+        final ChannelFuture conservePowerFuture = this.channel.write(new APNSNotificationRequest(newNotification(2, DeliveryPriority.CONSERVE_POWER), null));
+        this.write(newNotification(3, DeliveryPriority.IMMEDIATE));
+
+        // An immediate notification takes the place of a queued power-conserving one
+        final ChannelFuture immediateFuture = this.channel.write(new APNSNotificationRequest(newNotification(4, DeliveryPriority.IMMEDIATE), null));
+
+        Assert.assertTrue(conservePowerFuture.cause() instanceof PendingQueueFullException);
+        Assert.assertFalse(immediateFuture.isDone());
+        Assert.assertEquals(2, this.handler.getPendingQueueDepth());
+
+        // A power-conserving notification never displaces an immediate one
+        final ChannelFuture rejectedFuture = this.channel.write(new APNSNotificationRequest(newNotification(5, DeliveryPriority.CONSERVE_POWER), null));
+        Assert.assertTrue(rejectedFuture.cause() instanceof PendingQueueFullException);
+    }
+
+    @Test
+    public void testConservePowerNotificationsLeaveStreamsForImmediateOnes() throws Exception {
+        // One of the two streams is reserved for immediate notifications
+        this.connect(2, 0);
+
+        this.write(newNotification(1, DeliveryPriority.CONSERVE_POWER));
+        this.write(newNotification(2, DeliveryPriority.CONSERVE_POWER));
+        this.write(newNotification(3, DeliveryPriority.IMMEDIATE));
+        this.write(newNotification(4, DeliveryPriority.IMMEDIATE));
+
+        Assert.assertEquals(Arrays.asList(1, 3), this.readWrittenStreamIds());
+        Assert.assertEquals(2, this.handler.getPendingQueueDepth());
+
+        // The waiting immediate notification goes first, and the power-conserving one only once a stream is free
+        // besides the reserved one
+        this.respond(1, "200", null);
+        Assert.assertEquals(Collections.singletonList(5), this.readWrittenStreamIds());
+
+        this.respond(3, "200", null);
+        Assert.assertTrue(this.readWrittenStreamIds().isEmpty());
+
+        this.respond(5, "200", null);
+        Assert.assertEquals(Collections.singletonList(7), this.readWrittenStreamIds());
+
+        Assert.assertEquals(Arrays.asList(token(1), token(3), token(4), token(2)), this.writtenTokens());
+    }
+
+    @Test
+    public void testQueuedNotificationsAreWeightedByPriority() throws Exception {
+        this.connect(1, 0);
+
+        this.write(newNotification(0, DeliveryPriority.IMMEDIATE));
+
+        for (int i = 1; i <= 3; i++) {
+            this.write(newNotification(100 + i, DeliveryPriority.CONSERVE_POWER));
+        }
+
+        for (int i = 1; i <= Constant.IMMEDIATE_SCHEDULING_WEIGHT + 2; i++) {
+            this.write(newNotification(i, DeliveryPriority.IMMEDIATE));
+        }
+
+        int streamId = 1;
+
+        while (this.handler.getPendingQueueDepth() > 0) {
+            this.respond(streamId, "200", null);
+            streamId += 2;
+        }
+
+        final List<String> expectedTokens = new ArrayList<>();
+        expectedTokens.add(token(0));
+
+        for (int i = 1; i <= Constant.IMMEDIATE_SCHEDULING_WEIGHT; i++) {
+            expectedTokens.add(token(i));
+        }
+
+        expectedTokens.add(token(101));
+        expectedTokens.add(token(Constant.IMMEDIATE_SCHEDULING_WEIGHT + 1));
+        expectedTokens.add(token(Constant.IMMEDIATE_SCHEDULING_WEIGHT + 2));
+        expectedTokens.add(token(102));
+        expectedTokens.add(token(103));
+
+        this.readWrittenStreamIds();
+        Assert.assertEquals(expectedTokens, this.writtenTokens());
+    }
+
+    @Test
+    public void testGoAwayMovesUnprocessedNotificationsOffTheConnection() throws Exception {
+        this.connect(3, 0);
+
+        final Promise<Result> processedPromise = this.write(newNotification(1, DeliveryPriority.IMMEDIATE));
+        final Promise<Result> firstUnprocessedPromise = this.write(newNotification(2, DeliveryPriority.IMMEDIATE));
+        final Promise<Result> secondUnprocessedPromise = this.write(newNotification(3, DeliveryPriority.IMMEDIATE));
+
+        final ChannelFuture queuedFuture = this.channel.write(new APNSNotificationRequest(newNotification(4, DeliveryPriority.IMMEDIATE), null));
+        this.channel.runPendingTasks();
+
+        Assert.assertEquals(Arrays.asList(1, 3, 5), this.readWrittenStreamIds());
+        Assert.assertEquals(1, this.handler.getPendingQueueDepth());
+
+        this.gatewayFrameWriter.writeGoAway(this.gatewayContext, 1, Http2Error.NO_ERROR.code(), Unpooled.EMPTY_BUFFER,
+                this.gatewayContext.newPromise());
+        this.sendGatewayFrames();
+        this.channel.runPendingTasks();
+
+        // The queued notification and any written from now on go to the replacement connection instead of this one
+        final ChannelFuture lateFuture = this.channel.write(new APNSNotificationRequest(newNotification(5, DeliveryPriority.IMMEDIATE), null));
+        this.channel.runPendingTasks();
+
+        Assert.assertEquals(0, this.handler.getPendingQueueDepth());
+        Assert.assertTrue(this.readWrittenStreamIds().isEmpty());
+
+        // The gateway still answers the streams it processed
+        this.respond(1, "200", null);
+        Assert.assertTrue(processedPromise.isSuccess());
+
+        // The client in this test has no connection to move them to, so they fail instead of being lost
+        Assert.assertTrue(firstUnprocessedPromise.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(secondUnprocessedPromise.await(5, TimeUnit.SECONDS));
+        awaitDone(queuedFuture);
+        awaitDone(lateFuture);
+
+        Assert.assertTrue(firstUnprocessedPromise.cause() instanceof NotConnectedException);
+        Assert.assertTrue(secondUnprocessedPromise.cause() instanceof NotConnectedException);
+        Assert.assertTrue(queuedFuture.cause() instanceof NotConnectedException);
+        Assert.assertTrue(lateFuture.cause() instanceof NotConnectedException);
+    }
+
+    /**
+     * Adds a handler to a new embedded channel and completes the connection preface with the given concurrent stream
+     * limit from the gateway.
+     */
+    private void connect(final int maxConcurrentStreams, final long responseTimeoutNanos) throws Exception {
+        this.connect(maxConcurrentStreams, responseTimeoutNanos, Constant.DEFAULT_MAX_PENDING_NOTIFICATIONS, PendingQueuePolicy.FAIL_FAST);
+    }
+
+    private void connect(final int maxConcurrentStreams, final long responseTimeoutNanos, final int maxPendingNotifications, final PendingQueuePolicy pendingQueuePolicy) throws Exception {
+        final APNSClientHandler.APNSClientHandlerBuilder builder = new APNSClientHandler.APNSClientHandlerBuilder();
+        builder.initialSettings(new Http2Settings());
+
+        this.handler = builder
+                .server(false)
+                .apnsClient(this.apnsClient)
+                .authority("api.push.apple.com")
+                .maxUnflushedNotifications(Constant.DEFAULT_MAX_UNFLUSHED_NOTIFICATIONS)
+                .flushLatencyTargetNanos(0)
+                .adaptiveFlush(false)
+                .pendingQueue(maxPendingNotifications, pendingQueuePolicy)
+                .responseTimeoutNanos(responseTimeoutNanos)
+                .encoderEnforceMaxConcurrentStreams(false)
+                .build();
+
+        this.channel = new EmbeddedChannel(this.handler);
+
+        this.gatewayFrameWriter.writeSettings(this.gatewayContext, new Http2Settings().maxConcurrentStreams(maxConcurrentStreams),
+                this.gatewayContext.newPromise());
+        this.sendGatewayFrames();
+
+        Assert.assertTrue(this.handler.initialSettingsFuture().isSuccess());
+
+        // The client's preface precedes its frames
+        this.collectClientBytes();
+        this.clientBytes.skipBytes(Http2CodecUtil.connectionPrefaceBuf().readableBytes());
+    }
+
+    private Promise<Result> write(final APNSNotification notification) {
+        // Not bound to the embedded event loop, which would refuse to wait for it
+        final Promise<Result> responsePromise = new DefaultPromise<>(GlobalEventExecutor.INSTANCE);
+
+        this.channel.write(new APNSNotificationRequest(notification, responsePromise));
+        this.channel.runPendingTasks();
+
+        return responsePromise;
+    }
+
+    private void respond(final int streamId, final String status, final String body) throws Exception {
+        final Http2Headers headers = new DefaultHttp2Headers().status(status);
+
+        this.gatewayFrameWriter.writeHeaders(this.gatewayContext, streamId, headers, 0, body == null, this.gatewayContext.newPromise());
+
+        if (body != null) {
+            this.gatewayFrameWriter.writeData(this.gatewayContext, streamId,
+                    Unpooled.copiedBuffer(body, StandardCharsets.UTF_8), 0, true, this.gatewayContext.newPromise());
+        }
+
+        this.sendGatewayFrames();
+        this.channel.runPendingTasks();
+    }
+
+    private void sendGatewayFrames() {
+        this.gatewayChannel.flush();
+
+        ByteBuf frames;
+
+        while ((frames = this.gatewayChannel.readOutbound()) != null) {
+            this.channel.writeInbound(frames);
+        }
+    }
+
+    private void collectClientBytes() {
+        ByteBuf bytes;
+
+        while ((bytes = this.channel.readOutbound()) != null) {
+            this.clientBytes.writeBytes(bytes);
+            bytes.release();
+        }
+    }
+
+    /**
+     * Reads the frames the client has written since the last call and returns the IDs of the streams it opened.
+     */
+    private List<Integer> readWrittenStreamIds() throws Exception {
+        this.collectClientBytes();
+
+        final int alreadyWritten = this.writtenStreamIds.size();
+
+        while (this.clientBytes.readableBytes() >= Http2CodecUtil.FRAME_HEADER_LENGTH) {
+            this.gatewayFrameReader.readFrame(this.gatewayContext, this.clientBytes, new Http2FrameAdapter() {
+
+                @Override
+                public void onHeadersRead(final ChannelHandlerContext context, final int streamId, final Http2Headers headers, final int padding, final boolean endOfStream) {
+                    APNSClientHandlerTest.this.writtenStreamIds.add(streamId);
+                    APNSClientHandlerTest.this.writtenHeaders.add(headers);
+                }
+
+                @Override
+                public void onHeadersRead(final ChannelHandlerContext context, final int streamId, final Http2Headers headers, final int streamDependency, final short weight, final boolean exclusive, final int padding, final boolean endOfStream) {
+                    this.onHeadersRead(context, streamId, headers, padding, endOfStream);
+                }
+
+                @Override
+                public void onRstStreamRead(final ChannelHandlerContext context, final int streamId, final long errorCode) {
+                    Assert.assertEquals(Http2Error.CANCEL.code(), errorCode);
+                    APNSClientHandlerTest.this.resetStreamIds.add(streamId);
+                }
+            });
+        }
+
+        return new ArrayList<>(this.writtenStreamIds.subList(alreadyWritten, this.writtenStreamIds.size()));
+    }
+
+    /**
+     * Waits for a future of the embedded channel, which cannot be waited on with {@code await()} because the embedded
+     * event loop takes every thread for its own.
+     */
+    private static void awaitDone(final Future<?> future) throws InterruptedException {
+        final long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+        while (!future.isDone() && System.nanoTime() < deadlineNanos) {
+            Thread.sleep(10);
+        }
+
+        Assert.assertTrue(future.isDone());
+    }
+
+    /**
+     * Returns the device tokens of the notifications written so far, in the order their streams were opened.
+     */
+    private List<String> writtenTokens() {
+        final List<String> tokens = new ArrayList<>();
+
+        for (final Http2Headers headers : this.writtenHeaders) {
+            tokens.add(headers.path().toString().substring(Constant.APNS_PATH_PREFIX.length()));
+        }
+
+        return tokens;
+    }
+
+    private static String token(final int id) {
+        return String.format("%064x", id);
+    }
+
+    private static APNSNotification newNotification(final int id, final DeliveryPriority priority) {
+        return new APNSNotification(token(id), TOPIC, "{\"aps\":{\"alert\":\"" + id + "\"}}", null, priority);
+    }
+}
@@ -0,0 +1,45 @@
+package cn.claresun.cpush.handler;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * DeviceToken parsing and encoding tests.
+ */
+public class DeviceTokenTest {
+    private static final String TOKEN = "d9b201615d7b9bca06be8c5aba7007d1d5781d1cc86309e5ca0a223958712cd1";
+
+    @Test
+    public void testHexRoundTrip() {
+        final DeviceToken deviceToken = DeviceToken.fromHex(TOKEN.toUpperCase());
+
+        Assert.assertEquals(32, deviceToken.toByteArray().length);
+        Assert.assertEquals(64, deviceToken.hexLength());
+        Assert.assertEquals(TOKEN, deviceToken.toString());
+        Assert.assertEquals(deviceToken, DeviceToken.fromBytes(deviceToken.toByteArray()));
+    }
+
+    @Test
+    public void testPrintedFormIsAccepted() {
+        Assert.assertEquals(DeviceToken.fromHex(TOKEN), DeviceToken.fromHex("<d9b20161 5d7b9bca 06be8c5a ba7007d1 "
+                + "d5781d1c c86309e5 ca0a2239 58712cd1>"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCharacterIsRejected() {
+        DeviceToken.fromHex(TOKEN.substring(1) + "g");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOddLengthIsRejected() {
+        DeviceToken.fromHex(TOKEN.substring(1));
+    }
+
+    @Test
+    public void testNotificationPathMatchesStringToken() {
+        final APNSNotification notification = new APNSNotification(DeviceToken.fromHex(TOKEN), "com.example.app", "{}");
+
+        Assert.assertEquals(TOKEN, notification.getToken());
+        Assert.assertEquals(new APNSNotification(TOKEN, "com.example.app", "{}"), notification);
+    }
+}
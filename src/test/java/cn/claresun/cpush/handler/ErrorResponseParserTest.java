@@ -0,0 +1,51 @@
+package cn.claresun.cpush.handler;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ErrorResponseParser tests against APNs error response bodies.
+ */
+public class ErrorResponseParserTest {
+
+    @Test
+    public void testKnownReason() {
+        final ByteBuf body = body("{\"reason\":\"BadDeviceToken\"}");
+
+        Assert.assertEquals(RejectionReason.BAD_DEVICE_TOKEN, ErrorResponseParser.parseReason(body));
+        Assert.assertEquals(-1, ErrorResponseParser.parseTimestamp(body));
+    }
+
+    @Test
+    public void testReasonWithTimestamp() {
+        final ByteBuf body = body("{ \"reason\" : \"Unregistered\", \"timestamp\" : 1475857466000 }");
+
+        Assert.assertEquals(RejectionReason.UNREGISTERED, ErrorResponseParser.parseReason(body));
+        Assert.assertEquals(1475857466000L, ErrorResponseParser.parseTimestamp(body));
+    }
+
+    @Test
+    public void testUnknownReason() {
+        final ByteBuf body = body("{\"reason\":\"SomethingNew\",\"timestamp\":null}");
+
+        Assert.assertEquals(RejectionReason.UNKNOWN, ErrorResponseParser.parseReason(body));
+        Assert.assertEquals("SomethingNew", ErrorResponseParser.parseReasonText(body));
+        Assert.assertEquals(-1, ErrorResponseParser.parseTimestamp(body));
+    }
+
+    @Test
+    public void testBodyWithoutReason() {
+        final ByteBuf body = body("{}");
+
+        Assert.assertNull(ErrorResponseParser.parseReason(body));
+        Assert.assertNull(ErrorResponseParser.parseReasonText(body));
+    }
+
+    private static ByteBuf body(final String json) {
+        return Unpooled.copiedBuffer(json, StandardCharsets.UTF_8);
+    }
+}
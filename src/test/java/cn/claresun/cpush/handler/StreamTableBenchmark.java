@@ -0,0 +1,75 @@
+package cn.claresun.cpush.handler;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compares StreamTable against the HashMap it replaced, replaying the put/get/remove pattern of a connection with a
+ * fixed number of streams in flight. Not a unit test; run its main method directly.
+ */
+public class StreamTableBenchmark {
+    private static final int STREAMS_IN_FLIGHT = 1000;
+    private static final int STREAMS_PER_ROUND = 10000000;
+    private static final int ROUNDS = 5;
+
+    private static final Object VALUE = new Object();
+
+    public static void main(final String[] args) {
+        long blackhole = 0;
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long startNanos = System.nanoTime();
+            blackhole += runHashMap();
+            final long hashMapNanos = System.nanoTime() - startNanos;
+
+            startNanos = System.nanoTime();
+            blackhole += runStreamTable();
+            final long streamTableNanos = System.nanoTime() - startNanos;
+
+            System.out.printf("round %d: HashMap %.1f ns/stream, StreamTable %.1f ns/stream%n", round,
+                    (double) hashMapNanos / STREAMS_PER_ROUND, (double) streamTableNanos / STREAMS_PER_ROUND);
+        }
+
+        System.out.println(blackhole);
+    }
+
+    private static long runHashMap() {
+        final Map<Integer, Object> map = new HashMap<>();
+        long found = 0;
+
+        for (int i = 0; i < STREAMS_PER_ROUND; i++) {
+            final int streamId = 2 * i + 1;
+            map.put(streamId, VALUE);
+
+            if (i >= STREAMS_IN_FLIGHT) {
+                final int answeredStreamId = streamId - 2 * STREAMS_IN_FLIGHT;
+
+                if (map.get(answeredStreamId) != null && map.remove(answeredStreamId) != null) {
+                    found++;
+                }
+            }
+        }
+
+        return found;
+    }
+
+    private static long runStreamTable() {
+        final StreamTable<Object> table = new StreamTable<>(64);
+        long found = 0;
+
+        for (int i = 0; i < STREAMS_PER_ROUND; i++) {
+            final int streamId = 2 * i + 1;
+            table.put(streamId, VALUE);
+
+            if (i >= STREAMS_IN_FLIGHT) {
+                final int answeredStreamId = streamId - 2 * STREAMS_IN_FLIGHT;
+
+                if (table.get(answeredStreamId) != null && table.remove(answeredStreamId) != null) {
+                    found++;
+                }
+            }
+        }
+
+        return found;
+    }
+}
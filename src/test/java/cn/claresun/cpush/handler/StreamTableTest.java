@@ -0,0 +1,98 @@
+package cn.claresun.cpush.handler;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * StreamTable tests with client stream IDs.
+ */
+public class StreamTableTest {
+
+    @Test
+    public void testPutGetRemove() {
+        final StreamTable<String> table = new StreamTable<>(4);
+
+        Assert.assertNull(table.put(1, "a"));
+        Assert.assertNull(table.put(3, "b"));
+        Assert.assertEquals("a", table.put(1, "c"));
+
+        Assert.assertEquals("c", table.get(1));
+        Assert.assertEquals("b", table.get(3));
+        Assert.assertNull(table.get(5));
+        Assert.assertEquals(2, table.size());
+
+        Assert.assertEquals("c", table.remove(1));
+        Assert.assertNull(table.remove(1));
+        Assert.assertNull(table.get(1));
+        Assert.assertEquals(1, table.size());
+    }
+
+    @Test
+    public void testSlidingWindowDoesNotGrow() {
+        final StreamTable<Integer> table = new StreamTable<>(8);
+
+        for (int streamId = 1; streamId < 100000; streamId += 2) {
+            table.put(streamId, streamId);
+
+            if (streamId >= 15) {
+                Assert.assertEquals(Integer.valueOf(streamId - 14), table.remove(streamId - 14));
+            }
+        }
+
+        Assert.assertEquals(8, table.capacity());
+        Assert.assertEquals(7, table.size());
+    }
+
+    @Test
+    public void testGrowsWhenWindowWidens() {
+        final StreamTable<Integer> table = new StreamTable<>(4);
+
+        for (int streamId = 1; streamId < 64; streamId += 2) {
+            table.put(streamId, streamId);
+        }
+
+        Assert.assertEquals(32, table.size());
+        Assert.assertEquals(32, table.capacity());
+
+        for (int streamId = 1; streamId < 64; streamId += 2) {
+            Assert.assertEquals(Integer.valueOf(streamId), table.get(streamId));
+        }
+    }
+
+    @Test
+    public void testLongLivedStreamDoesNotStretchRing() {
+        final StreamTable<Integer> table = new StreamTable<>(4);
+        table.put(1, 1);
+
+        for (int streamId = 3; streamId < 100000; streamId += 2) {
+            table.put(streamId, streamId);
+            table.remove(streamId);
+        }
+
+        Assert.assertEquals(4, table.capacity());
+        Assert.assertEquals(1, table.size());
+        Assert.assertEquals(Integer.valueOf(1), table.get(1));
+        Assert.assertEquals(Integer.valueOf(1), table.remove(1));
+        Assert.assertTrue(table.isEmpty());
+    }
+
+    @Test
+    public void testRemoveAbove() {
+        final StreamTable<Integer> table = new StreamTable<>(4);
+
+        for (int streamId = 1; streamId <= 11; streamId += 2) {
+            table.put(streamId, streamId);
+        }
+
+        final List<Integer> removed = new ArrayList<>();
+        table.removeAbove(5, removed);
+
+        Assert.assertEquals(3, removed.size());
+        Assert.assertEquals(3, table.size());
+        Assert.assertEquals(Integer.valueOf(5), table.get(5));
+        Assert.assertNull(table.get(7));
+    }
+}
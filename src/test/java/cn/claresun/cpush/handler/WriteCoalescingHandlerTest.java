@@ -0,0 +1,69 @@
+package cn.claresun.cpush.handler;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * WriteCoalescingHandler tests on an embedded channel.
+ */
+public class WriteCoalescingHandlerTest {
+
+    @Test
+    public void testSmallWritesAreCoalesced() {
+        final WriteCoalescingHandler handler = new WriteCoalescingHandler(16);
+        final EmbeddedChannel channel = new EmbeddedChannel(handler);
+
+        final ChannelFuture firstWriteFuture = channel.write(ascii("abc"));
+        final ChannelFuture secondWriteFuture = channel.write(ascii("defgh"));
+        channel.write(ascii("ijklmnop"));
+        channel.write(ascii("qrs"));
+
+        Assert.assertNull(channel.readOutbound());
+        Assert.assertFalse(firstWriteFuture.isDone());
+
+        channel.flush();
+
+        assertOutbound(channel, "abcdefghijklmnop");
+        assertOutbound(channel, "qrs");
+        Assert.assertNull(channel.readOutbound());
+
+        Assert.assertTrue(firstWriteFuture.isSuccess());
+        Assert.assertTrue(secondWriteFuture.isSuccess());
+        Assert.assertEquals(2, handler.getRecordsWritten());
+
+        channel.finish();
+    }
+
+    @Test
+    public void testLargeWriteIsPassedThrough() {
+        final WriteCoalescingHandler handler = new WriteCoalescingHandler(4);
+        final EmbeddedChannel channel = new EmbeddedChannel(handler);
+
+        channel.write(ascii("ab"));
+        channel.write(ascii("cdefgh"));
+        channel.flush();
+
+        assertOutbound(channel, "ab");
+        assertOutbound(channel, "cdefgh");
+        Assert.assertNull(channel.readOutbound());
+
+        channel.finish();
+    }
+
+    private static ByteBuf ascii(final String string) {
+        return Unpooled.copiedBuffer(string, StandardCharsets.US_ASCII);
+    }
+
+    private static void assertOutbound(final EmbeddedChannel channel, final String expected) {
+        final ByteBuf buffer = channel.readOutbound();
+
+        Assert.assertEquals(expected, buffer.toString(StandardCharsets.US_ASCII));
+        buffer.release();
+    }
+}
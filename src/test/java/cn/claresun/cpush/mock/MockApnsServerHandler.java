@@ -1,9 +1,9 @@
 package cn.claresun.cpush.mock;
 
 import cn.claresun.cpush.handler.DeliveryPriority;
-import cn.claresun.cpush.handler.ErrorResponse;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
@@ -323,9 +323,12 @@ public class MockApnsServerHandler extends Http2ConnectionHandler implements Htt
 
             final byte[] payloadBytes;
             {
-                final ErrorResponse errorResponse =
-                        new ErrorResponse(rejectNotificationResponse.getErrorReason().getReasonText(),
-                                rejectNotificationResponse.getTimestamp());
+                final JsonObject errorResponse = new JsonObject();
+                errorResponse.addProperty("reason", rejectNotificationResponse.getErrorReason().getReasonText());
+
+                if (rejectNotificationResponse.getTimestamp() != null) {
+                    errorResponse.addProperty("timestamp", rejectNotificationResponse.getTimestamp().getTime());
+                }
 
                 payloadBytes = gson.toJson(errorResponse).getBytes();
             }
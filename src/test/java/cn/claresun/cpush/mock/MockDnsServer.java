@@ -0,0 +1,115 @@
+package cn.claresun.cpush.mock;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A stand-in DNS server on the loopback interface that answers every A query with a configurable set of IPv4
+ * addresses and every other query with an empty answer.
+ */
+public class MockDnsServer implements Runnable {
+    private static final int TYPE_A = 1;
+    private static final int CLASS_IN = 1;
+
+    private final DatagramSocket socket;
+    private final Thread thread;
+
+    private volatile List<InetAddress> addresses = Collections.emptyList();
+
+    public MockDnsServer() throws SocketException {
+        this.socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        this.thread = new Thread(this, "mock-dns-server");
+        this.thread.setDaemon(true);
+    }
+
+    public InetSocketAddress start() {
+        this.thread.start();
+        return (InetSocketAddress) this.socket.getLocalSocketAddress();
+    }
+
+    public void setAddresses(final String... ips) throws IOException {
+        final List<InetAddress> addresses = new ArrayList<>(ips.length);
+
+        for (final String ip : ips) {
+            addresses.add(InetAddress.getByName(ip));
+        }
+
+        this.addresses = addresses;
+    }
+
+    public void shutdown() {
+        this.socket.close();
+    }
+
+    @Override
+    public void run() {
+        final byte[] buffer = new byte[512];
+
+        while (!this.socket.isClosed()) {
+            try {
+                final DatagramPacket request = new DatagramPacket(buffer, buffer.length);
+                this.socket.receive(request);
+
+                final byte[] response = this.answer(ByteBuffer.wrap(request.getData(), 0, request.getLength()));
+                this.socket.send(new DatagramPacket(response, response.length, request.getSocketAddress()));
+            } catch (final IOException e) {
+                // The socket was closed
+            }
+        }
+    }
+
+    private byte[] answer(final ByteBuffer request) {
+        final short id = request.getShort();
+        request.position(12);
+
+        // Skip the labels of the question name
+        int labelLength;
+        while ((labelLength = request.get() & 0xff) != 0) {
+            request.position(request.position() + labelLength);
+        }
+
+        final int questionType = request.getShort() & 0xffff;
+        request.getShort();
+        final int questionEnd = request.position();
+
+        final List<InetAddress> answers = new ArrayList<>();
+
+        if (questionType == TYPE_A) {
+            for (final InetAddress address : this.addresses) {
+                if (address instanceof Inet4Address) {
+                    answers.add(address);
+                }
+            }
+        }
+
+        final ByteBuffer response = ByteBuffer.allocate(questionEnd + answers.size() * 16);
+        response.putShort(id);
+        response.putShort((short) 0x8180);
+        response.putShort((short) 1);
+        response.putShort((short) answers.size());
+        response.putShort((short) 0);
+        response.putShort((short) 0);
+        response.put(request.array(), request.arrayOffset() + 12, questionEnd - 12);
+
+        for (final InetAddress address : answers) {
+            // Pointer to the question name
+            response.putShort((short) 0xc00c);
+            response.putShort((short) TYPE_A);
+            response.putShort((short) CLASS_IN);
+            response.putInt(0);
+            response.putShort((short) 4);
+            response.put(address.getAddress());
+        }
+
+        return response.array();
+    }
+}